@@ -0,0 +1,105 @@
+package com.sunsetutopia.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Writers racing on one set. Every thread adds and then removes a value
+ * in a gap, so each invocation is two contended CAS updates.
+ *
+ * Change the thread count with -Djmh.args="-t 32 ContentionBenchmark".
+ *
+ * addRemoveCounted runs the same work in a fork with IntRanges metrics
+ * switched on, and reports the CAS retries each thread saw. It is kept
+ * separate so addRemove measures the uninstrumented code.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+    @Param({"dense", "fragmented"})
+    public String shape;
+
+    @Param({"10", "1000", "100000"})
+    public int segments;
+
+    private IntRanges ranges;
+    private int stride;
+
+    // the Outcomes of the benchmark thread, for the metrics sink to count into
+    private static final ThreadLocal<Outcomes> CURRENT = new ThreadLocal<Outcomes>();
+
+    @Setup
+    public void setUp() {
+        ranges = Shapes.ranges(shape, segments);
+        stride = Shapes.stride(shape);
+        if (IntRanges.metricsEnabled()) {
+            IntRanges.setMetrics(new IntRangesMetrics() {
+                @Override
+                public void casFailed(IntRanges source, int bytesCopied) {
+                    final Outcomes outcomes = CURRENT.get();
+                    if (outcomes != null)
+                        outcomes.casRetries++;
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (IntRanges.metricsEnabled())
+            IntRanges.setMetrics(null);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+        // updates that found their work already done by another writer
+        public long lost;
+        // CAS updates that had to be retried, only counted by addRemoveCounted
+        public long casRetries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lost = 0;
+            casRetries = 0;
+            CURRENT.set(this);
+        }
+    }
+
+    @Benchmark
+    public void addRemove(Outcomes outcomes) {
+        final long segment = ThreadLocalRandom.current().nextInt(segments) + 1;
+        final int n = (int) (Integer.MIN_VALUE + segment * stride - 1);
+        if (!ranges.add(n))
+            outcomes.lost++;
+        if (!ranges.remove(n))
+            outcomes.lost++;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dcom.sunsetutopia.utils.IntRanges.metrics=true")
+    public void addRemoveCounted(Outcomes outcomes) {
+        addRemove(outcomes);
+    }
+}
@@ -0,0 +1,106 @@
+package com.sunsetutopia.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Single threaded hot paths over each shape. Mutating benchmarks undo
+ * their change in the same invocation so the set keeps its shape.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class IntRangesBenchmark {
+    private static final int PROBES = 1 << 12;
+
+    @Param({"dense", "sparse", "fragmented"})
+    public String shape;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    public int segments;
+
+    private IntRanges ranges;
+    private IntRanges other;
+    private int[] probes;
+    private int[] gaps;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        ranges = Shapes.ranges(shape, segments);
+        // shifted half a stride so the tables interleave: dense segments
+        // overlap by about half, sparse and fragmented ones fall in the gaps
+        other = IntRanges.fromTransitions(Shapes.transitions(shape, segments, Shapes.stride(shape) / 2));
+        probes = Shapes.probes(shape, segments, PROBES, random);
+        gaps = Shapes.gaps(shape, segments, PROBES, random);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return ranges.contains(probes[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public boolean addRemove() {
+        final int n = gaps[next++ & (PROBES - 1)];
+        ranges.add(n);
+        return ranges.remove(n);
+    }
+
+    @Benchmark
+    public boolean addRemoveRange() {
+        final int n = gaps[next++ & (PROBES - 1)];
+        ranges.addRange(n, n + 1);
+        return ranges.removeRange(n, n + 1);
+    }
+
+    @Benchmark
+    public long iterate() {
+        final long[] sum = new long[1];
+        ranges.forEachInt(n -> sum[0] += n);
+        return sum[0];
+    }
+
+    @Benchmark
+    public long iterateRanges() {
+        final long[] sum = new long[1];
+        ranges.forEachRange((first, last) -> sum[0] += (long) last - first);
+        return sum[0];
+    }
+
+    @Benchmark
+    public int size() {
+        return ranges.size();
+    }
+
+    @Benchmark
+    public boolean union() {
+        return ranges.clone().addAll(other);
+    }
+
+    @Benchmark
+    public boolean intersection() {
+        return ranges.clone().retainAll(other);
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return ranges.containsAll(other);
+    }
+}
@@ -0,0 +1,62 @@
+package com.sunsetutopia.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Linear scan against binary search over a table, to place
+ * IntTransitions.LINEAR_SEARCH_LIMIT at the crossover.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookupBenchmark {
+    private static final int PROBES = 1 << 12;
+
+    @Param({"4", "16", "64", "128", "256", "512", "1024", "4096"})
+    public int length;
+
+    private int[] table;
+    private int[] probes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        table = new int[length];
+        for (int i = 0; i < length; i++)
+            table[i] = i * 3;
+        probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++)
+            probes[i] = random.nextInt(length * 3);
+    }
+
+    private int probe() {
+        return probes[next++ & (PROBES - 1)];
+    }
+
+    @Benchmark
+    public int linear() {
+        return IntTransitions.linearFirstAtLeast(table, probe());
+    }
+
+    @Benchmark
+    public int binary() {
+        return IntTransitions.binaryFirstAtLeast(table, 0, table.length, probe());
+    }
+}
@@ -0,0 +1,58 @@
+package com.sunsetutopia.utils;
+
+import java.util.Random;
+
+/*
+ * Transition tables of a given shape and segment count, laid out from
+ * MIN_VALUE so that even 10M segments fit in the int range.
+ *
+ * dense - long runs with short gaps
+ * sparse - isolated values far apart
+ * fragmented - every other value
+ */
+final class Shapes {
+    private Shapes() {
+    }
+
+    static int stride(String shape) {
+        return "fragmented".equals(shape) ? 2 : 256;
+    }
+
+    static int length(String shape) {
+        return "dense".equals(shape) ? 240 : 1;
+    }
+
+    static int[] transitions(String shape, int segments, int offset) {
+        final int stride = stride(shape);
+        final int length = length(shape);
+        final int[] transitions = new int[2 * segments];
+        for (int i = 0; i < segments; i++) {
+            final long start = (long) Integer.MIN_VALUE + (long) i * stride + offset;
+            transitions[2 * i] = (int) start;
+            transitions[2 * i + 1] = (int) (start + length);
+        }
+        return transitions;
+    }
+
+    static IntRanges ranges(String shape, int segments) {
+        return IntRanges.fromTransitions(transitions(shape, segments, 0));
+    }
+
+    // values spread across the whole set, present or not
+    static int[] probes(String shape, int segments, int count, Random random) {
+        final long span = (long) segments * stride(shape);
+        final int[] probes = new int[count];
+        for (int i = 0; i < count; i++)
+            probes[i] = (int) (Integer.MIN_VALUE + (long) (random.nextDouble() * span));
+        return probes;
+    }
+
+    // values just before the start of a segment, never present
+    static int[] gaps(String shape, int segments, int count, Random random) {
+        final int stride = stride(shape);
+        final int[] gaps = new int[count];
+        for (int i = 0; i < count; i++)
+            gaps[i] = (int) (Integer.MIN_VALUE + (long) (random.nextInt(segments) + 1) * stride - 1);
+        return gaps;
+    }
+}
@@ -0,0 +1,77 @@
+package com.sunsetutopia.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The cost of wide runs in a StripedIntRanges, which stores a segment
+ * per block a run covers, against an IntRanges holding the same run as
+ * one segment.
+ *
+ * span is in blocks of the default 4K values, so 1048576 is the whole
+ * int range.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class StripedBenchmark {
+    private static final int BLOCK = 1 << 12;
+
+    @Param({"16", "4096", "1048576"})
+    public long span;
+
+    private int from;
+    private int to;
+    private StripedIntRanges striped;
+    private IntRanges ranges;
+
+    @Setup
+    public void setUp() {
+        from = Integer.MIN_VALUE;
+        to = (int) Math.min(Integer.MAX_VALUE, (long) Integer.MIN_VALUE + span * BLOCK);
+        striped = new StripedIntRanges();
+        striped.addRange(from, to);
+        ranges = new IntRanges();
+        ranges.addRange(from, to);
+    }
+
+    @Benchmark
+    public boolean stripedAddRemoveRange() {
+        striped.removeRange(from, to);
+        return striped.addRange(from, to);
+    }
+
+    @Benchmark
+    public boolean addRemoveRange() {
+        ranges.removeRange(from, to);
+        return ranges.addRange(from, to);
+    }
+
+    // merges every stripe's segments back into runs
+    @Benchmark
+    public int stripedSnapshotAfterWrite() {
+        striped.remove(from);
+        striped.add(from);
+        return striped.snapshot().rangeCount();
+    }
+
+    // unchanged since the last snapshot, so the previous merge is reused
+    @Benchmark
+    public int stripedSnapshotQuiet() {
+        return striped.snapshot().rangeCount();
+    }
+}
@@ -0,0 +1,240 @@
+package com.sunsetutopia.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/*
+ * A read-only int set holding an IntRanges transition table in compressed
+ * form, for sets with many short, closely spaced segments where the plain
+ * table of 4 bytes per transition dominates the heap.
+ *
+ * The table is cut into blocks of BLOCK transitions. Each block keeps its
+ * first transition uncompressed in a skip index, and the rest as varint
+ * gaps (the difference to the previous transition, less one, since it is
+ * always at least one). A gap under 128 takes a single byte.
+ *
+ * contains() binary searches the skip index and then decodes at most one
+ * block, about a cache line for small gaps. Iteration decodes the table as
+ * a stream, and toIntRanges() decodes it in bulk back to the plain form.
+ */
+public final class CompressedIntRanges extends AbstractSet<Integer> {
+    static final int BLOCK = 64;
+
+    private final int count;
+    private final long cardinality;
+    private final int[] blockFirst;
+    private final int[] blockOffset;
+    private final byte[] gaps;
+
+    public CompressedIntRanges(IntRanges source) {
+        final IntRanges.Snapshot snapshot = source.snapshot();
+        final int[] transitions = snapshot.transitions;
+
+        int size = 0;
+        for (int i = 1; i < transitions.length; i++) {
+            if (i % BLOCK != 0)
+                size += VarInts.size(transitions[i] - transitions[i - 1] - 1);
+        }
+
+        final int blocks = (transitions.length + BLOCK - 1) / BLOCK;
+        this.count = transitions.length;
+        this.cardinality = snapshot.cardinality;
+        this.blockFirst = new int[blocks];
+        this.blockOffset = new int[blocks];
+        this.gaps = new byte[size];
+
+        int position = 0;
+        for (int i = 0; i < transitions.length; i++) {
+            if (i % BLOCK == 0) {
+                blockFirst[i / BLOCK] = transitions[i];
+                blockOffset[i / BLOCK] = position;
+            } else {
+                position = VarInts.put(gaps, position, transitions[i] - transitions[i - 1] - 1);
+            }
+        }
+    }
+
+    public boolean contains(int n) {
+        // the last block starting at or before n holds the last transition <= n
+        final int block = IntTransitions.firstGreaterThan(blockFirst, n) - 1;
+        if (block < 0)
+            return false;
+
+        final Decoder decoder = new Decoder(block);
+        int atMost = block * BLOCK;
+        while (decoder.inBlock(block) && decoder.next() <= n)
+            atMost++;
+        return (atMost & 1) == 1;
+    }
+
+    public long cardinality() {
+        return cardinality;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int rangeCount() {
+        return (count + 1) / 2;
+    }
+
+    /*
+     * Bytes held by the compressed table, against 4 * transitions for the
+     * plain one.
+     */
+    public long encodedBytes() {
+        return gaps.length + 4L * blockFirst.length + 4L * blockOffset.length;
+    }
+
+    int[] transitions() {
+        final int[] transitions = new int[count];
+        final Decoder decoder = new Decoder(0);
+        for (int i = 0; i < count; i++)
+            transitions[i] = decoder.next();
+        return transitions;
+    }
+
+    public IntRanges toIntRanges() {
+        return IntRanges.fromTransitions(transitions());
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (o instanceof CompressedIntRanges) {
+            final CompressedIntRanges other = (CompressedIntRanges) o;
+            return count == other.count && Arrays.equals(blockFirst, other.blockFirst)
+                    && Arrays.equals(gaps, other.gaps);
+        }
+
+        final int[] other = IntTransitions.transitionsOf(o);
+        if (other != null)
+            return Arrays.equals(transitions(), other);
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        return toIntRanges().toString();
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return new CompressedIterator();
+    }
+
+    public void forEachInt(IntConsumer action) {
+        intIterator().forEachRemaining(action);
+    }
+
+    public void forEachRange(IntBinaryConsumer action) {
+        final Decoder decoder = new Decoder(0);
+        while (decoder.hasNext()) {
+            final int first = decoder.next();
+            action.accept(first, decoder.hasNext() ? decoder.next() - 1 : Integer.MAX_VALUE);
+        }
+    }
+
+    /*
+     * Streams the transitions in order, starting from a block.
+     */
+    private final class Decoder {
+        private int index;
+        private int position;
+        private int value;
+
+        Decoder(int block) {
+            this.index = block * BLOCK;
+            this.position = (block < blockOffset.length) ? blockOffset[block] : gaps.length;
+        }
+
+        boolean hasNext() {
+            return index < count;
+        }
+
+        boolean inBlock(int block) {
+            return index < count && index / BLOCK == block;
+        }
+
+        int next() {
+            if (index % BLOCK == 0) {
+                // blocks are stored back to back, so position is already there
+                value = blockFirst[index / BLOCK];
+            } else {
+                final int gap = VarInts.get(gaps, position);
+                position += VarInts.size(gap);
+                value += gap + 1;
+            }
+            index++;
+            return value;
+        }
+    }
+
+    private final class CompressedIterator implements PrimitiveIterator.OfInt {
+        private final Decoder decoder = new Decoder(0);
+        private boolean inSegment;
+        private int next;
+        private int last;
+
+        CompressedIterator() {
+            nextSegment();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return inSegment;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final int n = next;
+            if (n != last)
+                next = n + 1;
+            else
+                nextSegment();
+            return n;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            while (hasNext()) {
+                for (int n = next; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+                nextSegment();
+            }
+        }
+
+        private void nextSegment() {
+            inSegment = decoder.hasNext();
+            if (inSegment) {
+                next = decoder.next();
+                last = decoder.hasNext() ? decoder.next() - 1 : Integer.MAX_VALUE;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
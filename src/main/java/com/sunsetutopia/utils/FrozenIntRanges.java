@@ -0,0 +1,164 @@
+package com.sunsetutopia.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/*
+ * An immutable int set from IntRanges.freeze(), for sets that are built
+ * once and then queried heavily.
+ *
+ * It shares the snapshot's transition table, so freezing copies nothing,
+ * and every field is final, so it can be published to other threads
+ * without synchronization. Lookups read plain fields rather than going
+ * through the AtomicReference, and the class is final, so contains()
+ * stays monomorphic at its call sites.
+ *
+ * Every SAMPLE-th transition is copied into a small sampling index that
+ * stays in cache. A lookup searches the index, then SAMPLE entries of the
+ * table, touching a couple of cache lines of the table rather than
+ * log2(n). Alongside each sample is the number of values before it, so
+ * rank() only sums the segments within one block.
+ */
+public final class FrozenIntRanges extends AbstractSet<Integer> {
+    static final int SAMPLE = 64;
+
+    private final int[] transitions;
+    private final long cardinality;
+    private final int[] samples;
+    private final long[] ranks;
+
+    FrozenIntRanges(IntRanges.Snapshot snapshot) {
+        this.transitions = snapshot.transitions;
+        this.cardinality = snapshot.cardinality;
+
+        final int blocks = (transitions.length + SAMPLE - 1) / SAMPLE;
+        this.samples = new int[blocks];
+        this.ranks = new long[blocks];
+        long rank = 0;
+        for (int b = 0; b < blocks; b++) {
+            samples[b] = transitions[b * SAMPLE];
+            ranks[b] = rank;
+            for (int i = b * SAMPLE; i < Math.min((b + 1) * SAMPLE, transitions.length); i += 2)
+                rank += (long) IntTransitions.lastInSegment(transitions, i) - transitions[i] + 1;
+        }
+    }
+
+    /*
+     * Index of the first transition >= n, found through the samples.
+     */
+    private int firstAtLeast(int n) {
+        // the block holding the answer starts at the last sample < n
+        final int block = IntTransitions.firstAtLeast(samples, n) - 1;
+        if (block < 0)
+            return 0;
+
+        final int from = block * SAMPLE;
+        return IntTransitions.binaryFirstAtLeast(transitions, from,
+                Math.min(from + SAMPLE, transitions.length), n);
+    }
+
+    public boolean contains(int n) {
+        final int greater = (n == Integer.MAX_VALUE) ? transitions.length : firstAtLeast(n + 1);
+        return (greater & 1) == 1;
+    }
+
+    /*
+     * Number of values in the set less than n.
+     */
+    public long rank(int n) {
+        if (transitions.length == 0)
+            return 0;
+
+        final int i = firstAtLeast(n);
+        final int block = (i == transitions.length) ? (i - 1) / SAMPLE : i / SAMPLE;
+
+        long rank = ranks[block];
+        final int whole = i & ~1;
+        for (int j = block * SAMPLE; j < whole; j += 2)
+            rank += (long) transitions[j + 1] - transitions[j];
+        if ((i & 1) == 1)
+            rank += (long) n - transitions[i - 1];
+        return rank;
+    }
+
+    public long cardinality() {
+        return cardinality;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return transitions.length == 0;
+    }
+
+    public int rangeCount() {
+        return (transitions.length + 1) / 2;
+    }
+
+    /*
+     * A mutable copy, sharing the table until it is first changed.
+     */
+    public IntRanges toIntRanges() {
+        return IntRanges.fromTransitions(transitions);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (o instanceof FrozenIntRanges)
+            return Arrays.equals(transitions, ((FrozenIntRanges) o).transitions);
+
+        final int[] other = IntTransitions.transitionsOf(o);
+        if (other != null)
+            return Arrays.equals(transitions, other);
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        return toIntRanges().toString();
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    public void forEachInt(IntConsumer action) {
+        for (int i = 0; i < transitions.length; i += 2) {
+            final int last = IntTransitions.lastInSegment(transitions, i);
+            for (int n = transitions[i]; n < last; n++)
+                action.accept(n);
+            action.accept(last);
+        }
+    }
+
+    public void forEachRange(IntBinaryConsumer action) {
+        for (int i = 0; i < transitions.length; i += 2)
+            action.accept(transitions[i], IntTransitions.lastInSegment(transitions, i));
+    }
+
+    public Spliterator.OfInt spliterator() {
+        return new IntRanges.IntRangeSpliterator(transitions, cardinality);
+    }
+
+    public IntStream intStream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+}
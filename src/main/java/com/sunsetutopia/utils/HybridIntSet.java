@@ -0,0 +1,793 @@
+package com.sunsetutopia.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/*
+ * An int set for values that are dense but scattered, where the plain
+ * transition table of IntRanges grows to twice the size of the set.
+ *
+ * The int space is split into chunks of 2^16 values, keyed by the high
+ * half of each value, and each chunk present holds its low halves in
+ * whichever container is smallest for its contents:
+ *
+ *   Run     a transition table as in IntRanges, 4 bytes a transition
+ *   Array   the sorted values, 2 bytes each, for up to 4096 values
+ *   Bitmap  one bit per value, always 8KB
+ *
+ * Range updates and construction pick the smallest container outright.
+ * Point updates convert when they cross a threshold: arrays become
+ * bitmaps past 4096 values and bitmaps return to arrays at or below it,
+ * and runs convert once they are no longer the smallest.
+ *
+ * Containers are immutable, and the chunk index is published by CAS as in
+ * IntRanges, so an update copies one container and the index. Iteration
+ * walks the snapshot it started with.
+ */
+public final class HybridIntSet extends AbstractSet<Integer> implements Cloneable {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int LOW_MASK = CHUNK - 1;
+    private static final int MAX_KEY = Integer.MAX_VALUE >> CHUNK_BITS;
+
+    static final int ARRAY_MAX = 4096;
+    static final int BITMAP_BYTES = CHUNK / 8;
+
+    private static final State EMPTY = new State(new int[0], new Container[0], 0);
+
+    private final AtomicReference<State> _state;
+
+    public HybridIntSet() {
+        _state = new AtomicReference<State>();
+        _state.set(EMPTY);
+    }
+
+    public HybridIntSet(IntRanges source) {
+        _state = new AtomicReference<State>();
+        _state.set(fromTransitions(source.transitions()));
+    }
+
+    /*
+     * The chunks present, in key order, and the number of values in all
+     * of them. Every update publishes a new State.
+     */
+    private static final class State {
+        final int[] keys;
+        final Container[] containers;
+        final long cardinality;
+
+        State(int[] keys, Container[] containers, long cardinality) {
+            this.keys = keys;
+            this.containers = containers;
+            this.cardinality = cardinality;
+        }
+
+        Container get(int key) {
+            final int i = IntTransitions.firstAtLeast(keys, key);
+            return (i < keys.length && keys[i] == key) ? containers[i] : null;
+        }
+
+        /*
+         * This state with the chunk for key replaced by c, where null
+         * means empty.
+         */
+        State with(int key, Container c, long newCardinality) {
+            final int i = IntTransitions.firstAtLeast(keys, key);
+            final boolean present = i < keys.length && keys[i] == key;
+            if (present && c != null) {
+                final Container[] newContainers = containers.clone();
+                newContainers[i] = c;
+                return new State(keys, newContainers, newCardinality);
+            } else {
+                return replace(i, present ? i + 1 : i, new int[] { key }, new Container[] { c }, newCardinality);
+            }
+        }
+
+        /*
+         * This state with chunks [from, to) replaced by the non-null
+         * entries of newContainers.
+         */
+        State replace(int from, int to, int[] newKeys, Container[] newContainers, long newCardinality) {
+            int present = 0;
+            for (Container c : newContainers) {
+                if (c != null)
+                    present++;
+            }
+
+            final int length = from + present + keys.length - to;
+            final int[] k = new int[length];
+            final Container[] cs = new Container[length];
+            System.arraycopy(keys, 0, k, 0, from);
+            System.arraycopy(containers, 0, cs, 0, from);
+            int j = from;
+            for (int i = 0; i < newContainers.length; i++) {
+                if (newContainers[i] != null) {
+                    k[j] = newKeys[i];
+                    cs[j++] = newContainers[i];
+                }
+            }
+            System.arraycopy(keys, to, k, j, keys.length - to);
+            System.arraycopy(containers, to, cs, j, keys.length - to);
+            return new State(k, cs, newCardinality);
+        }
+    }
+
+    State state() {
+        return _state.get();
+    }
+
+    private static int key(int n) {
+        return n >> CHUNK_BITS;
+    }
+
+    private static int low(int n) {
+        return n & LOW_MASK;
+    }
+
+    public boolean contains(int n) {
+        final Container c = state().get(key(n));
+        return c != null && c.contains(low(n));
+    }
+
+    public boolean add(int n) {
+        final int key = key(n);
+        while (true) {
+            final State state = state();
+            final Container c = state.get(key);
+            final Container newC = (c == null) ? ArrayContainer.single(low(n)) : c.add(low(n));
+            if (newC == c)
+                return false;
+            if (_state.compareAndSet(state, state.with(key, newC, state.cardinality + 1)))
+                return true;
+            // update failed, try again
+        }
+    }
+
+    public boolean remove(int n) {
+        final int key = key(n);
+        while (true) {
+            final State state = state();
+            final Container c = state.get(key);
+            if (c == null)
+                return false;
+            final Container newC = c.remove(low(n));
+            if (newC == c)
+                return false;
+            if (_state.compareAndSet(state, state.with(key, newC, state.cardinality - 1)))
+                return true;
+            // update failed, try again
+        }
+    }
+
+    /*
+     * Adds every value in [fromInclusive, toExclusive), rebuilding only
+     * the chunks the range touches.
+     */
+    public boolean addRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, true);
+    }
+
+    public boolean removeRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, false);
+    }
+
+    private static void checkRange(int fromInclusive, int toExclusive) {
+        if (fromInclusive > toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") > toExclusive(" + toExclusive + ")");
+    }
+
+    private boolean splice(int first, int last, boolean on) {
+        final int firstKey = key(first);
+        final int lastKey = key(last);
+        final int chunks = lastKey - firstKey + 1;
+        final int[] newKeys = new int[chunks];
+        for (int i = 0; i < chunks; i++)
+            newKeys[i] = firstKey + i;
+
+        while (true) {
+            final State state = state();
+            final int from = IntTransitions.firstAtLeast(state.keys, firstKey);
+            final int to = IntTransitions.firstGreaterThan(state.keys, lastKey);
+
+            final Container[] newContainers = new Container[chunks];
+            long cardinality = state.cardinality;
+            boolean changed = false;
+            int j = from;
+            for (int i = 0; i < chunks; i++) {
+                final int key = newKeys[i];
+                Container c = null;
+                if (j < to && state.keys[j] == key)
+                    c = state.containers[j++];
+
+                final int lo = (key == firstKey) ? low(first) : 0;
+                final int hi = (key == lastKey) ? low(last) : LOW_MASK;
+                final Container newC = (c == null)
+                        ? (on ? Container.best(new int[] { lo, hi + 1 }, hi - lo + 1) : null)
+                        : c.splice(lo, hi, on);
+
+                changed |= newC != c;
+                cardinality += ((newC == null) ? 0 : newC.cardinality()) - ((c == null) ? 0 : c.cardinality());
+                newContainers[i] = newC;
+            }
+
+            if (!changed)
+                return false;
+            if (_state.compareAndSet(state, state.replace(from, to, newKeys, newContainers, cardinality)))
+                return true;
+            // update failed, try again
+        }
+    }
+
+    public long cardinality() {
+        return state().cardinality;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return state().keys.length == 0;
+    }
+
+    public void clear() {
+        _state.set(new State(EMPTY.keys, EMPTY.containers, 0));
+    }
+
+    /*
+     * Bytes held by the containers, not counting the chunk index.
+     */
+    public long containerBytes() {
+        long bytes = 0;
+        for (Container c : state().containers)
+            bytes += c.bytes();
+        return bytes;
+    }
+
+    // "run", "array" or "bitmap" for the chunk holding n, or null if none
+    String containerKind(int n) {
+        final Container c = state().get(key(n));
+        if (c instanceof RunContainer)
+            return "run";
+        else if (c instanceof ArrayContainer)
+            return "array";
+        else if (c instanceof BitmapContainer)
+            return "bitmap";
+        else
+            return null;
+    }
+
+    public HybridIntSet clone() {
+        final HybridIntSet s = new HybridIntSet();
+        s._state.set(state());
+        return s;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        final int[] other = IntTransitions.transitionsOf(o);
+        if (other != null)
+            return Arrays.equals(transitions(), other);
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        return toIntRanges().toString();
+    }
+
+    public IntRanges toIntRanges() {
+        return IntRanges.fromTransitions(transitions());
+    }
+
+    /*
+     * The set as a single IntRanges transition table. Runs that continue
+     * from one chunk into the next are joined, and a run reaching
+     * MAX_VALUE is left open-ended.
+     */
+    int[] transitions() {
+        final State state = state();
+        final int[][] tables = new int[state.keys.length][];
+        int length = 0;
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = state.containers[i].transitions();
+            length += tables[i].length;
+        }
+
+        final int[] out = new int[length];
+        int k = 0;
+        for (int i = 0; i < tables.length; i++) {
+            final int base = state.keys[i] << CHUNK_BITS;
+            for (int t : tables[i]) {
+                if (t == 0 && k > 0 && out[k - 1] == base)
+                    k--;
+                else if (t != CHUNK || state.keys[i] != MAX_KEY)
+                    out[k++] = base + t;
+            }
+        }
+        return Arrays.copyOf(out, k);
+    }
+
+    private static State fromTransitions(int[] is) {
+        int[] keys = new int[16];
+        Container[] containers = new Container[16];
+        int chunks = 0;
+        long cardinality = 0;
+
+        final int[] table = new int[CHUNK];
+        int length = 0;
+        int current = 0;
+        for (int i = 0; i < is.length; i += 2) {
+            final int first = is[i];
+            final int last = IntTransitions.lastInSegment(is, i);
+            for (int key = key(first); ; key++) {
+                if (length > 0 && key != current) {
+                    if (chunks == keys.length) {
+                        keys = Arrays.copyOf(keys, 2 * chunks);
+                        containers = Arrays.copyOf(containers, 2 * chunks);
+                    }
+                    final int[] t = Arrays.copyOf(table, length);
+                    keys[chunks] = current;
+                    containers[chunks] = Container.best(t, (int) IntTransitions.cardinality(t));
+                    cardinality += containers[chunks++].cardinality();
+                    length = 0;
+                }
+
+                current = key;
+                table[length++] = (key == key(first)) ? low(first) : 0;
+                table[length++] = ((key == key(last)) ? low(last) : LOW_MASK) + 1;
+                if (key == key(last))
+                    break;
+            }
+        }
+
+        if (length > 0) {
+            if (chunks == keys.length) {
+                keys = Arrays.copyOf(keys, chunks + 1);
+                containers = Arrays.copyOf(containers, chunks + 1);
+            }
+            final int[] t = Arrays.copyOf(table, length);
+            keys[chunks] = current;
+            containers[chunks] = Container.best(t, (int) IntTransitions.cardinality(t));
+            cardinality += containers[chunks++].cardinality();
+        }
+        return new State(Arrays.copyOf(keys, chunks), Arrays.copyOf(containers, chunks), cardinality);
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public boolean add(Integer o) {
+        return add((int) o);
+    }
+
+    public boolean remove(Object o) {
+        return remove((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return new HybridIterator(state());
+    }
+
+    public void forEachInt(IntConsumer action) {
+        final State state = state();
+        for (int i = 0; i < state.keys.length; i++)
+            state.containers[i].forEach(state.keys[i] << CHUNK_BITS, action);
+    }
+
+    /*
+     * Passes each maximal run to action as its first and last values, so
+     * runs crossing chunk boundaries are a single call.
+     */
+    public void forEachRange(IntBinaryConsumer action) {
+        final int[] transitions = transitions();
+        for (int i = 0; i < transitions.length; i += 2)
+            action.accept(transitions[i], IntTransitions.lastInSegment(transitions, i));
+    }
+
+    public int rangeCount() {
+        return (transitions().length + 1) / 2;
+    }
+
+    public Spliterator.OfInt spliterator() {
+        final State state = state();
+        return Spliterators.spliterator(new HybridIterator(state), state.cardinality,
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT
+                | Spliterator.IMMUTABLE | Spliterator.NONNULL);
+    }
+
+    public IntStream intStream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /*
+     * Holds the low 16 bits of the values in one chunk. Updates return a
+     * new container, this when nothing changes, or null when empty.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(int low);
+
+        abstract Container add(int low);
+
+        abstract Container remove(int low);
+
+        // a chunk-local transition table, ending at most at CHUNK
+        abstract int[] transitions();
+
+        abstract int bytes();
+
+        abstract void forEach(int base, IntConsumer action);
+
+        Container splice(int lo, int hi, boolean on) {
+            final int[] transitions = transitions();
+            final int[] newTransitions = IntTransitions.splice(transitions, lo, hi, on);
+            if (newTransitions == transitions)
+                return this;
+            else
+                return best(newTransitions, (int) IntTransitions.cardinality(newTransitions));
+        }
+
+        /*
+         * The smallest container for the values in transitions, preferring
+         * runs on a tie as they are the cheapest to update by range.
+         */
+        static Container best(int[] transitions, int cardinality) {
+            if (cardinality == 0)
+                return null;
+
+            final int runBytes = 4 * transitions.length;
+            final int arrayBytes = (cardinality <= ARRAY_MAX) ? 2 * cardinality : Integer.MAX_VALUE;
+            if (runBytes <= arrayBytes && runBytes <= BITMAP_BYTES)
+                return new RunContainer(transitions, cardinality);
+            else if (arrayBytes <= BITMAP_BYTES)
+                return ArrayContainer.of(transitions, cardinality);
+            else
+                return BitmapContainer.of(transitions, cardinality);
+        }
+    }
+
+    private static final class RunContainer extends Container {
+        final int[] transitions;
+        final int cardinality;
+
+        RunContainer(int[] transitions, int cardinality) {
+            this.transitions = transitions;
+            this.cardinality = cardinality;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains(int low) {
+            return (IntTransitions.firstGreaterThan(transitions, low) & 1) == 1;
+        }
+
+        Container add(int low) {
+            final int[] newTransitions = IntTransitions.splice(transitions, low, low, true);
+            return (newTransitions == transitions) ? this : best(newTransitions, cardinality + 1);
+        }
+
+        Container remove(int low) {
+            final int[] newTransitions = IntTransitions.splice(transitions, low, low, false);
+            return (newTransitions == transitions) ? this : best(newTransitions, cardinality - 1);
+        }
+
+        int[] transitions() {
+            return transitions;
+        }
+
+        int bytes() {
+            return 4 * transitions.length;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < transitions.length; i += 2) {
+                for (int low = transitions[i]; low < transitions[i + 1]; low++)
+                    action.accept(base + low);
+            }
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        static ArrayContainer single(int low) {
+            return new ArrayContainer(new char[] { (char) low });
+        }
+
+        static ArrayContainer of(int[] transitions, int cardinality) {
+            final char[] values = new char[cardinality];
+            int k = 0;
+            for (int i = 0; i < transitions.length; i += 2) {
+                for (int low = transitions[i]; low < transitions[i + 1]; low++)
+                    values[k++] = (char) low;
+            }
+            return new ArrayContainer(values);
+        }
+
+        int cardinality() {
+            return values.length;
+        }
+
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, (char) low) >= 0;
+        }
+
+        Container add(int low) {
+            final int i = Arrays.binarySearch(values, (char) low);
+            if (i >= 0)
+                return this;
+
+            if (values.length == ARRAY_MAX) {
+                final long[] words = new long[CHUNK / 64];
+                for (char v : values)
+                    words[v >>> 6] |= 1L << v;
+                words[low >>> 6] |= 1L << low;
+                return new BitmapContainer(words, values.length + 1);
+            }
+
+            final int at = -i - 1;
+            final char[] newValues = new char[values.length + 1];
+            System.arraycopy(values, 0, newValues, 0, at);
+            newValues[at] = (char) low;
+            System.arraycopy(values, at, newValues, at + 1, values.length - at);
+            return new ArrayContainer(newValues);
+        }
+
+        Container remove(int low) {
+            final int i = Arrays.binarySearch(values, (char) low);
+            if (i < 0)
+                return this;
+            if (values.length == 1)
+                return null;
+
+            final char[] newValues = new char[values.length - 1];
+            System.arraycopy(values, 0, newValues, 0, i);
+            System.arraycopy(values, i + 1, newValues, i, values.length - i - 1);
+            return new ArrayContainer(newValues);
+        }
+
+        int[] transitions() {
+            int runs = 1;
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] != values[i - 1] + 1)
+                    runs++;
+            }
+
+            final int[] transitions = new int[2 * runs];
+            int k = 0;
+            transitions[k++] = values[0];
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] != values[i - 1] + 1) {
+                    transitions[k++] = values[i - 1] + 1;
+                    transitions[k++] = values[i];
+                }
+            }
+            transitions[k] = values[values.length - 1] + 1;
+            return transitions;
+        }
+
+        int bytes() {
+            return 2 * values.length;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (char v : values)
+                action.accept(base + v);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words;
+        final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer of(int[] transitions, int cardinality) {
+            final long[] words = new long[CHUNK / 64];
+            for (int i = 0; i < transitions.length; i += 2) {
+                final int from = transitions[i];
+                final int to = transitions[i + 1];
+                final int firstWord = from >>> 6;
+                final int lastWord = (to - 1) >>> 6;
+                for (int w = firstWord; w <= lastWord; w++) {
+                    long mask = -1L;
+                    if (w == firstWord)
+                        mask &= -1L << from;
+                    if (w == lastWord)
+                        mask &= -1L >>> (63 - ((to - 1) & 63));
+                    words[w] |= mask;
+                }
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains(int low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        Container add(int low) {
+            if (contains(low))
+                return this;
+
+            final long[] newWords = words.clone();
+            newWords[low >>> 6] |= 1L << low;
+            return new BitmapContainer(newWords, cardinality + 1);
+        }
+
+        Container remove(int low) {
+            if (!contains(low))
+                return this;
+
+            if (cardinality - 1 <= ARRAY_MAX) {
+                final char[] values = new char[cardinality - 1];
+                int k = 0;
+                for (int w = 0; w < words.length; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        final int v = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (v != low)
+                            values[k++] = (char) v;
+                        word &= word - 1;
+                    }
+                }
+                return new ArrayContainer(values);
+            }
+
+            final long[] newWords = words.clone();
+            newWords[low >>> 6] &= ~(1L << low);
+            return new BitmapContainer(newWords, cardinality - 1);
+        }
+
+        int[] transitions() {
+            // bit i of flips is set where bit i differs from bit i - 1
+            int length = 0;
+            long carry = 0;
+            for (long word : words) {
+                length += Long.bitCount(word ^ ((word << 1) | carry));
+                carry = word >>> 63;
+            }
+            length += (int) carry;
+
+            final int[] transitions = new int[length];
+            int k = 0;
+            carry = 0;
+            for (int w = 0; w < words.length; w++) {
+                long flips = words[w] ^ ((words[w] << 1) | carry);
+                while (flips != 0) {
+                    transitions[k++] = (w << 6) + Long.numberOfTrailingZeros(flips);
+                    flips &= flips - 1;
+                }
+                carry = words[w] >>> 63;
+            }
+            if (carry != 0)
+                transitions[k] = CHUNK;
+            return transitions;
+        }
+
+        int bytes() {
+            return BITMAP_BYTES;
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    action.accept(base + (w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    /*
+     * Walks a snapshot chunk by chunk, taking each chunk's runs as a
+     * transition table.
+     */
+    private static final class HybridIterator implements PrimitiveIterator.OfInt {
+        private final State state;
+        private int chunk;
+        private int[] table;
+        private int segment;
+        private int next;
+        private int last;
+
+        HybridIterator(State state) {
+            this.state = state;
+            this.chunk = -1;
+            nextChunk();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return chunk < state.keys.length;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final int n = next;
+            if (n != last)
+                next = n + 1;
+            else
+                nextSegment();
+            return n;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            while (hasNext()) {
+                for (int n = next; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+                nextSegment();
+            }
+        }
+
+        private void nextSegment() {
+            segment += 2;
+            if (segment < table.length)
+                startSegment();
+            else
+                nextChunk();
+        }
+
+        private void nextChunk() {
+            chunk++;
+            if (chunk < state.keys.length) {
+                table = state.containers[chunk].transitions();
+                segment = 0;
+                startSegment();
+            }
+        }
+
+        private void startSegment() {
+            final int base = state.keys[chunk] << CHUNK_BITS;
+            next = base + table[segment];
+            last = base + table[segment + 1] - 1;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
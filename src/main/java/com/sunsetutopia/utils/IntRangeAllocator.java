@@ -0,0 +1,190 @@
+package com.sunsetutopia.utils;
+
+import java.util.NoSuchElementException;
+
+/*
+ * Hands out ids from [fromInclusive, toExclusive), tracking which are in
+ * use in an IntRanges.
+ *
+ * allocate() takes the lowest free id. The free ids are the gaps in the
+ * transition table, so the lowest is found by one search from the bottom
+ * of the pool, and the search and the add are committed together by one
+ * CAS on the table. No two callers can be given the same id.
+ *
+ * With a block size above one each thread reserves that many ids at a
+ * time and hands them out without touching the shared table, so most
+ * allocations never contend. Reserved ids count as in use until handed
+ * out or returned by release(), and ids are then only lowest first
+ * within each thread's block.
+ */
+public final class IntRangeAllocator {
+    // returned by lowestGap when no gap is large enough
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final IntRanges allocated;
+    private final int from;
+    private final int to;
+    private final int blockSize;
+    private final ThreadLocal<Block> blocks;
+
+    // the ids [next, end) a thread has reserved but not handed out
+    private static final class Block {
+        int next;
+        int end;
+    }
+
+    public IntRangeAllocator(int fromInclusive, int toExclusive) {
+        this(new IntRanges(), fromInclusive, toExclusive, 1);
+    }
+
+    /*
+     * An allocator recording ids in allocated, which may already hold
+     * some, and which can be watched or saved like any other IntRanges.
+     * Ids should only be added to or removed from it through here.
+     */
+    public IntRangeAllocator(IntRanges allocated, int fromInclusive, int toExclusive, int blockSize) {
+        if (fromInclusive >= toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") >= toExclusive(" + toExclusive + ")");
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize=" + blockSize);
+
+        this.allocated = allocated;
+        this.from = fromInclusive;
+        this.to = toExclusive;
+        this.blockSize = blockSize;
+        this.blocks = (blockSize > 1) ? ThreadLocal.withInitial(Block::new) : null;
+    }
+
+    /*
+     * Allocates the lowest free id, or the next one from this thread's
+     * block. Throws NoSuchElementException once every id is in use.
+     */
+    public int allocate() {
+        if (blocks == null)
+            return reserve(1);
+
+        final Block block = blocks.get();
+        if (block.next == block.end) {
+            final long start = tryReserve(blockSize);
+            if (start == NONE) {
+                // no whole block left, so take single ids from the gaps
+                return reserve(1);
+            }
+            block.next = (int) start;
+            block.end = (int) start + blockSize;
+        }
+        return block.next++;
+    }
+
+    /*
+     * Allocates count consecutive ids at the lowest place they fit,
+     * returning the first.
+     */
+    public int allocateRange(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("count=" + count);
+        return reserve(count);
+    }
+
+    public boolean free(int id) {
+        checkId(id);
+        return allocated.remove(id);
+    }
+
+    public boolean freeRange(int first, int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("count=" + count);
+        checkId(first);
+        if (count > to - (long) first)
+            throw new IllegalArgumentException("first(" + first + ") + count(" + count + ") > toExclusive(" + to + ")");
+        return allocated.removeRange(first, first + count);
+    }
+
+    /*
+     * Frees the ids this thread has reserved but not yet handed out, as
+     * a thread should before it finishes.
+     */
+    public void release() {
+        if (blocks == null)
+            return;
+
+        final Block block = blocks.get();
+        if (block.next != block.end)
+            allocated.removeRange(block.next, block.end);
+        blocks.remove();
+    }
+
+    public boolean isAllocated(int id) {
+        return allocated.contains(id);
+    }
+
+    /*
+     * Number of ids in use, including those reserved by threads.
+     */
+    public long allocatedCount() {
+        return allocated.cardinality();
+    }
+
+    /*
+     * The live set of ids in use.
+     */
+    public IntRanges allocated() {
+        return allocated;
+    }
+
+    private void checkId(int id) {
+        if (id < from || id >= to)
+            throw new IllegalArgumentException("id(" + id + ") outside [" + from + ", " + to + ")");
+    }
+
+    private int reserve(int count) {
+        final long start = tryReserve(count);
+        if (start == NONE)
+            throw new NoSuchElementException("no " + count + " free ids in [" + from + ", " + to + ")");
+        return (int) start;
+    }
+
+    private long tryReserve(int count) {
+        while (true) {
+            final IntRanges.Snapshot snapshot = allocated.snapshot();
+            final int[] transitions = snapshot.transitions;
+            final long start = lowestGap(transitions, from, to, count);
+            if (start == NONE)
+                return NONE;
+
+            // the gap is free, so the new ids add exactly count values
+            final int[] newTransitions = IntTransitions.splice(transitions, (int) start, (int) (start + count - 1), true);
+            if (allocated.updateTransitions(snapshot, newTransitions, snapshot.cardinality + count))
+                return start;
+            // update failed, try again
+        }
+    }
+
+    /*
+     * The lowest n >= from with [n, n + count) all free and below to, or
+     * NONE. Free runs are the gaps between segments, so this walks the
+     * table from the first one at or above from, which is usually the
+     * first gap it looks at.
+     */
+    private static long lowestGap(int[] transitions, int from, int to, int count) {
+        long start = from;
+        int i = IntTransitions.firstGreaterThan(transitions, from);
+        if ((i & 1) == 1) {
+            // from is in use, so the gap starts where its segment ends
+            if (i == transitions.length)
+                return NONE;
+            start = transitions[i++];
+        }
+
+        // start is free up to transitions[i], the next segment
+        while (true) {
+            final long end = (i < transitions.length) ? Math.min(transitions[i], to) : to;
+            if (end - start >= count)
+                return start;
+            if (i + 1 >= transitions.length || transitions[i] >= to)
+                return NONE;
+            start = transitions[i + 1];
+            i += 2;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.sunsetutopia.utils;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Maps disjoint ranges of ints to values, on the same sorted-transition
+ * idea as IntRanges.
+ *
+ * keys[i] is where values[i] starts to apply, and it runs until the next
+ * key, or to MAX_VALUE for the last one. A null value marks a gap, such
+ * as the end of the last range, and nothing before keys[0] is mapped.
+ * Adjacent ranges never hold equal values (by equals), because a put
+ * that would make them equal joins them, so the table has one entry per
+ * change of value.
+ *
+ * get() is a search of keys, so one lookup replaces probing a set per
+ * value. Updates copy the table and publish it by CAS as IntRanges does,
+ * and reads never lock.
+ */
+public final class IntRangeMap<V> {
+    private static final Snapshot EMPTY = new Snapshot(new int[0], new Object[0]);
+
+    private final AtomicReference<Snapshot> _snapshot;
+
+    public IntRangeMap() {
+        _snapshot = new AtomicReference<Snapshot>();
+        _snapshot.set(EMPTY);
+    }
+
+    private static final class Snapshot {
+        final int[] keys;
+        final Object[] values;
+
+        Snapshot(int[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    /*
+     * Receives a mapped range as its first and last keys, both inclusive,
+     * and its value.
+     */
+    @FunctionalInterface
+    public interface RangeConsumer<V> {
+        void accept(int first, int last, V value);
+    }
+
+    /*
+     * The value for n, or null if n is not mapped.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int n) {
+        final Snapshot snapshot = _snapshot.get();
+        final int i = IntTransitions.firstGreaterThan(snapshot.keys, n) - 1;
+        return (i < 0) ? null : (V) snapshot.values[i];
+    }
+
+    public boolean containsKey(int n) {
+        return get(n) != null;
+    }
+
+    public boolean put(int n, V value) {
+        Objects.requireNonNull(value, "value");
+        return assign(n, n, value);
+    }
+
+    /*
+     * Maps every key in [fromInclusive, toExclusive) to value, replacing
+     * what was there. Returns false if they all held an equal value already.
+     */
+    public boolean putRange(int fromInclusive, int toExclusive, V value) {
+        Objects.requireNonNull(value, "value");
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return assign(fromInclusive, toExclusive - 1, value);
+    }
+
+    public boolean remove(int n) {
+        return assign(n, n, null);
+    }
+
+    public boolean removeRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return assign(fromInclusive, toExclusive - 1, null);
+    }
+
+    private static void checkRange(int fromInclusive, int toExclusive) {
+        if (fromInclusive > toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") > toExclusive(" + toExclusive + ")");
+    }
+
+    private boolean assign(int first, int last, V value) {
+        while (true) {
+            final Snapshot snapshot = _snapshot.get();
+            final Snapshot newSnapshot = assign(snapshot, first, last, value);
+
+            if (newSnapshot == snapshot) {
+                return false;
+            } else {
+                if (_snapshot.compareAndSet(snapshot, newSnapshot))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    /*
+     * Entries starting before first are kept, those starting in
+     * [first, last] are replaced by at most one for value, and one is added
+     * at last + 1 to carry on whatever was mapped there before. Either is
+     * left out where it would repeat the value before it.
+     */
+    private static Snapshot assign(Snapshot snapshot, int first, int last, Object value) {
+        final int[] keys = snapshot.keys;
+        final Object[] values = snapshot.values;
+
+        final int i = IntTransitions.firstAtLeast(keys, first);
+        int j = IntTransitions.firstGreaterThan(keys, last);
+        final Object before = (i > 0) ? values[i - 1] : null;
+        final Object after = (j > 0) ? values[j - 1] : null;
+
+        final boolean startEntry = !Objects.equals(value, before);
+        final Object previous = startEntry ? value : before;
+        boolean endEntry = false;
+        if (last != Integer.MAX_VALUE) {
+            if (j < keys.length && keys[j] == last + 1) {
+                // the next entry already starts there, unless it now repeats
+                if (Objects.equals(values[j], previous))
+                    j++;
+            } else {
+                endEntry = !Objects.equals(after, previous);
+            }
+        }
+
+        final int middle = (startEntry ? 1 : 0) + (endEntry ? 1 : 0);
+        if (middle == j - i) {
+            boolean same = true;
+            int k = i;
+            if (startEntry)
+                same = keys[k] == first && Objects.equals(values[k++], value);
+            if (endEntry)
+                same = same && keys[k] == last + 1 && Objects.equals(values[k], after);
+            if (same)
+                return snapshot;
+        }
+
+        final int length = i + middle + keys.length - j;
+        final int[] newKeys = new int[length];
+        final Object[] newValues = new Object[length];
+        System.arraycopy(keys, 0, newKeys, 0, i);
+        System.arraycopy(values, 0, newValues, 0, i);
+        int k = i;
+        if (startEntry) {
+            newKeys[k] = first;
+            newValues[k++] = value;
+        }
+        if (endEntry) {
+            newKeys[k] = last + 1;
+            newValues[k++] = after;
+        }
+        System.arraycopy(keys, j, newKeys, k, keys.length - j);
+        System.arraycopy(values, j, newValues, k, keys.length - j);
+        return new Snapshot(newKeys, newValues);
+    }
+
+    public boolean isEmpty() {
+        return _snapshot.get().keys.length == 0;
+    }
+
+    public void clear() {
+        _snapshot.set(new Snapshot(EMPTY.keys, EMPTY.values));
+    }
+
+    /*
+     * Number of mapped ranges, counting ranges with different values
+     * separately.
+     */
+    public int rangeCount() {
+        int count = 0;
+        for (Object value : _snapshot.get().values) {
+            if (value != null)
+                count++;
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEachRange(RangeConsumer<? super V> action) {
+        final Snapshot snapshot = _snapshot.get();
+        final int[] keys = snapshot.keys;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (snapshot.values[i] != null) {
+                final int last = (i + 1 < keys.length) ? keys[i + 1] - 1 : Integer.MAX_VALUE;
+                action.accept(keys[i], last, (V) snapshot.values[i]);
+            }
+        }
+    }
+
+    /*
+     * The keys mapped to anything.
+     */
+    public IntRanges keySet() {
+        return keysWhere(null);
+    }
+
+    /*
+     * The keys mapped to value, such as every id a shard owns.
+     */
+    public IntRanges keysFor(V value) {
+        Objects.requireNonNull(value, "value");
+        return keysWhere(value);
+    }
+
+    // the keys mapped to value, or to anything if value is null
+    private IntRanges keysWhere(Object value) {
+        final Snapshot snapshot = _snapshot.get();
+        final int[] keys = snapshot.keys;
+        final int[] transitions = new int[keys.length];
+        int k = 0;
+        for (int i = 0; i < keys.length; i++) {
+            final Object v = snapshot.values[i];
+            final boolean in = (value == null) ? v != null : value.equals(v);
+            // a change of value within the wanted keys is no transition
+            if (in != ((k & 1) == 1))
+                transitions[k++] = keys[i];
+        }
+        return IntRanges.fromTransitions(Arrays.copyOf(transitions, k));
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        forEachRange((first, last, value) -> {
+            if (sb.length() > 1)
+                sb.append(',');
+            if (first == last)
+                sb.append(first);
+            else
+                sb.append('[').append(first).append('-').append(last).append(']');
+            sb.append('=').append(value);
+        });
+        return sb.append('}').toString();
+    }
+}
@@ -1,12 +1,30 @@
 package com.sunsetutopia.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
 import java.util.AbstractSet;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /*
  * Stores an int set using ranges.
@@ -17,21 +35,197 @@ import java.util.concurrent.atomic.AtomicReference;
  * e.g. if transitions=[2,4,6] then
  * the set is {2, 3, 6...MAX_INT}
  */
-public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
-    private final AtomicReference<int[]> _transitions;
+public final class IntRanges extends AbstractSet<Integer> implements Cloneable, Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    // leading byte of the encoded form, bumped if the layout changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Snapshot EMPTY = new Snapshot(new int[0], 0, 0);
+
+    // batches at least this large are sorted in parallel
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    // unsorted batch queries at least this large are answered in parallel
+    private static final int PARALLEL_QUERY_THRESHOLD = 1 << 16;
+
+    private static final IntRangesListener[] NO_LISTENERS = new IntRangesListener[0];
+
+    /*
+     * Metrics are switched on for the whole JVM with
+     * -Dcom.sunsetutopia.utils.IntRanges.metrics=true. The flag is a
+     * constant, so when it is off the JIT drops every hook along with
+     * its branch and the hot paths cost what they did without them.
+     */
+    private static final boolean METRICS = Boolean.getBoolean("com.sunsetutopia.utils.IntRanges.metrics");
+
+    // where hooks report to, if METRICS and one has been installed
+    private static volatile IntRangesMetrics metrics;
+
+    private final AtomicReference<Snapshot> _snapshot;
+
+    // replaced whole under the lock, read without it on every update
+    private volatile IntRangesListener[] _listeners = NO_LISTENERS;
 
     public IntRanges() {
-        _transitions = new AtomicReference<int[]>();
-        _transitions.set(new int[0]);
+        _snapshot = new AtomicReference<Snapshot>();
+        _snapshot.set(EMPTY);
+    }
+
+    /*
+     * Wraps an existing, valid transition table without copying it. The
+     * caller must not modify the array afterwards.
+     */
+    static IntRanges fromTransitions(int[] transitions) {
+        IntRanges r = new IntRanges();
+        r.updateTransitionsUnseen(transitions);
+        return r;
+    }
+
+    /*
+     * A transition table and the number of values in it, published
+     * together so the cached count always matches the table.
+     *
+     * Every update publishes a new Snapshot, so an unchanged reference
+     * means an unchanged set. Each one is also numbered one past the
+     * Snapshot it replaced, so that listeners elsewhere can tell which
+     * change came first.
+     *
+     * Positional queries need the number of values before each segment.
+     * Those prefix sums are built the first time they are asked for, so
+     * updates never pay for them. Two threads may both build them, but
+     * the results are the same.
+     */
+    static final class Snapshot {
+        // returned by the long lookups when there is no such value
+        static final long NONE = Long.MIN_VALUE;
+
+        final int[] transitions;
+        final long cardinality;
+        final long version;
+        private volatile long[] prefixSums;
+
+        Snapshot(int[] transitions, long cardinality, long version) {
+            this.transitions = transitions;
+            this.cardinality = cardinality;
+            this.version = version;
+        }
+
+        // prefixSums[s] is the number of values in segments before s
+        private long[] prefixSums() {
+            long[] sums = prefixSums;
+            if (sums == null) {
+                sums = new long[(transitions.length + 1) / 2 + 1];
+                for (int i = 0; i < transitions.length; i += 2)
+                    sums[i / 2 + 1] = sums[i / 2] + IntTransitions.lastInSegment(transitions, i) - transitions[i] + 1;
+                prefixSums = sums;
+            }
+            return sums;
+        }
+
+        /*
+         * Number of values less than x, for any x in or beyond the int
+         * range.
+         */
+        long rank(IntRanges source, long x) {
+            if (x <= Integer.MIN_VALUE)
+                return 0;
+            if (x > Integer.MAX_VALUE)
+                return cardinality;
+
+            final int i = IntTransitions.firstAtLeast(transitions, (int) x);
+            if (METRICS)
+                source.reportSearched(IntTransitions.firstAtLeastProbes(transitions.length, i));
+            long rank = prefixSums()[i / 2];
+            if ((i & 1) == 1)
+                rank += x - transitions[i - 1];
+            return rank;
+        }
+
+        int select(long k) {
+            if (k < 0 || k >= cardinality)
+                throw new IndexOutOfBoundsException("k=" + k + ", cardinality=" + cardinality);
+
+            // the last segment with fewer than k values before it
+            final long[] sums = prefixSums();
+            int lo = 0;
+            int hi = sums.length - 2;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (sums[mid] <= k)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return (int) (transitions[2 * lo] + (k - sums[lo]));
+        }
+
+        // least value >= x, or NONE
+        long ceiling(IntRanges source, long x) {
+            if (x > Integer.MAX_VALUE)
+                return NONE;
+            if (x < Integer.MIN_VALUE)
+                x = Integer.MIN_VALUE;
+
+            final int i = IntTransitions.firstGreaterThan(transitions, (int) x);
+            if (METRICS)
+                source.reportSearched(IntTransitions.firstGreaterThanProbes(transitions.length, (int) x, i));
+            if ((i & 1) == 1)
+                return x;
+            else
+                return (i < transitions.length) ? transitions[i] : NONE;
+        }
+
+        // greatest value <= x, or NONE
+        long floor(IntRanges source, long x) {
+            if (x < Integer.MIN_VALUE)
+                return NONE;
+            if (x > Integer.MAX_VALUE)
+                x = Integer.MAX_VALUE;
+
+            final int i = IntTransitions.firstGreaterThan(transitions, (int) x);
+            if (METRICS)
+                source.reportSearched(IntTransitions.firstGreaterThanProbes(transitions.length, (int) x, i));
+            if ((i & 1) == 1)
+                return x;
+            else
+                return (i > 0) ? transitions[i - 1] - 1L : NONE;
+        }
+
+        /*
+         * The part of the table within [from, to), copying only the
+         * transitions inside it.
+         */
+        int[] clip(long from, long to) {
+            if (from >= to || transitions.length == 0)
+                return EMPTY.transitions;
+
+            final int i = (from <= Integer.MIN_VALUE) ? 0
+                    : IntTransitions.firstGreaterThan(transitions, (int) from);
+            final int j = (to > Integer.MAX_VALUE) ? transitions.length
+                    : IntTransitions.firstGreaterThan(transitions, (int) (to - 1));
+            final boolean startInside = (i & 1) == 1;
+            final boolean endInside = (j & 1) == 1 && to <= Integer.MAX_VALUE;
+
+            final int[] clipped = new int[(startInside ? 1 : 0) + (j - i) + (endInside ? 1 : 0)];
+            int k = 0;
+            if (startInside)
+                clipped[k++] = (int) from;
+            System.arraycopy(transitions, i, clipped, k, j - i);
+            k += j - i;
+            if (endInside)
+                clipped[k] = (int) to;
+            return clipped;
+        }
     }
 
     private static int lastIndexSmallerThan(int[] is, int n) {
         assert(is.length > 0);
-        for (int i = 0; i < is.length; i++) {
-            if (is[i] >= n)
-                return i - 1;
-        }
-        return is.length;
+        final int i = IntTransitions.firstAtLeast(is, n);
+        if (i == is.length)
+            return is.length;
+        else
+            return i - 1;
     }
 
     private static void verifyTransitionTable(int[] is) {
@@ -41,36 +235,62 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
         }
     }
 
-    private int[] transitions() {
-        return _transitions.get();
+    Snapshot snapshot() {
+        return _snapshot.get();
+    }
+
+    int[] transitions() {
+        return snapshot().transitions;
+    }
+
+    /*
+     * Goes up by one with every change, including one made by apply. A
+     * new set is at 0, and a clone starts at the version it copied.
+     */
+    public long version() {
+        return snapshot().version;
     }
 
 
-    private boolean updateTransitions(final int[] old, final int[] newTransitions) {
+    // also the commit step for IntRangeAllocator's own searches
+    boolean updateTransitions(final Snapshot old, final int[] newTransitions, final long cardinality) {
         //verifyTransitionTable(newTransitions);
-        return _transitions.compareAndSet(old, newTransitions);
+        final Snapshot snapshot = new Snapshot(newTransitions, cardinality, old.version + 1);
+        if (!_snapshot.compareAndSet(old, snapshot)) {
+            if (METRICS)
+                reportCasFailed(newTransitions);
+            return false;
+        }
+
+        if (METRICS)
+            reportUpdated(newTransitions);
+        final IntRangesListener[] listeners = _listeners;
+        if (listeners.length > 0)
+            fireChanged(listeners, diff(old, snapshot));
+        return true;
     }
 
 
     private void updateTransitionsUnseen(final int[] newTransitions) {
         //verifyTransitionTable(newTransitions);
-        _transitions.set(newTransitions);
+        _snapshot.set(new Snapshot(newTransitions, IntTransitions.cardinality(newTransitions),
+                _snapshot.get().version + 1));
     }
 
 
     public boolean contains(int n) {
-        int[] transitions = transitions();
-        if (transitions.length == 0) {
-            return false;
-        } else {
-            int idx = lastIndexSmallerThan(transitions, n + 1);
-            return (idx % 2 == 0) && (idx != transitions.length);
-        }
+        final int[] transitions = transitions();
+        final int i = IntTransitions.firstGreaterThan(transitions, n);
+        if (METRICS)
+            reportSearched(IntTransitions.firstGreaterThanProbes(transitions.length, n, i));
+        // inside a segment when an odd number of transitions are <= n
+        return (i & 1) == 1;
     }
 
     public boolean add(int n) {
         while (true) {
-            final int[] transitions = transitions();
+            final Snapshot snapshot = snapshot();
+            final int[] transitions = snapshot.transitions;
             final int[] newTransitions;
 
             if (transitions.length == 0) {
@@ -94,7 +314,7 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
             if (transitions == newTransitions) {
                 return false;
             } else {
-                if (updateTransitions(transitions, newTransitions))
+                if (updateTransitions(snapshot, newTransitions, snapshot.cardinality + 1))
                     return true;
                 // update failed, try again
             }
@@ -155,6 +375,9 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
             if (n != transitions[idx + 1]) {
                 // nothing to do, already in
                 return transitions;
+            } else if (n == Integer.MAX_VALUE) {
+                // the segment becomes open ended
+                return Arrays.copyOf(transitions, transitions.length - 1);
             } else if (((idx + 2) < transitions.length) && ((n + 1) == transitions[idx + 2])) {
                 // need to merge segments
                 // looks like [idx(...), idx+1(n), idx+2(n+1), ...]
@@ -191,9 +414,54 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
         }
     }
 
+    /*
+     * Adds every value in [fromInclusive, toExclusive) with a single
+     * update of the transition table. As the range is half-open it can
+     * not reach MAX_VALUE itself; add(MAX_VALUE) for that.
+     */
+    public boolean addRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, true);
+    }
+
+    /*
+     * Removes every value in [fromInclusive, toExclusive) with a single
+     * update of the transition table.
+     */
+    public boolean removeRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, false);
+    }
+
+    private static void checkRange(int fromInclusive, int toExclusive) {
+        if (fromInclusive > toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") > toExclusive(" + toExclusive + ")");
+    }
+
+    private boolean splice(int first, int last, boolean on) {
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            final int[] transitions = snapshot.transitions;
+            final int[] newTransitions = IntTransitions.splice(transitions, first, last, on);
+
+            if (transitions == newTransitions) {
+                return false;
+            } else {
+                if (updateTransitions(snapshot, newTransitions, IntTransitions.cardinality(newTransitions)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
     public boolean remove(int n) {
         while (true) {
-            final int[] transitions = transitions();
+            final Snapshot snapshot = snapshot();
+            final int[] transitions = snapshot.transitions;
 
             if (transitions.length == 0) {
                 // not present
@@ -214,7 +482,7 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
                 if (transitions == newTransitions) {
                     return false;
                 } else {
-                    if (updateTransitions(transitions, newTransitions))
+                    if (updateTransitions(snapshot, newTransitions, snapshot.cardinality - 1))
                         return true;
                     // update failed, try again
                 }
@@ -223,123 +491,336 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
     }
 
     private static int[] removeAtStart(int[] transitions, int n) {
-        if (transitions[0] > n) {
+        // everything before transitions[0] is absent, and n <= transitions[0]
+        if (transitions[0] != n) {
             // not in the set
             return transitions;
-        } else if (transitions[0] == n) {
-            if (transitions[1] == n + 1) {
-                // drop the initial segment
-                return Arrays.copyOfRange(transitions, 2, transitions.length);
+        } else if (transitions.length == 1) {
+            // open ended from n
+            if (n == Integer.MAX_VALUE) {
+                return new int[0];
             } else {
-                // truncate the initial segment
-                int[] newTransitions = transitions.clone();
-                newTransitions[0] += 1;
-                return newTransitions;
+                return new int[] {n + 1};
             }
+        } else if (transitions[1] == n + 1) {
+            // drop the initial segment
+            return Arrays.copyOfRange(transitions, 2, transitions.length);
         } else {
-            // punch a hole in the segment
-            throw new UnsupportedOperationException();
+            // truncate the initial segment
+            int[] newTransitions = transitions.clone();
+            newTransitions[0] += 1;
+            return newTransitions;
         }
     }
 
     private static int[] removeAtEnd(int[] transitions, int n, int last, int idx) {
-        throw new UnsupportedOperationException();
+        assert(n > last);
+
+        if (idx % 2 == 0) {
+            // after the final segment
+            return transitions;
+        } else if (n == Integer.MAX_VALUE) {
+            // end the open segment just before n
+            int[] newTransitions = Arrays.copyOf(transitions, transitions.length + 1);
+            newTransitions[transitions.length] = n;
+            return newTransitions;
+        } else {
+            // punch a hole in the open segment
+            int[] newTransitions = Arrays.copyOf(transitions, transitions.length + 2);
+            newTransitions[transitions.length] = n;
+            newTransitions[transitions.length + 1] = n + 1;
+            return newTransitions;
+        }
     }
 
     private static int[] removeInterior(int[] transitions, int n, int last, int idx) {
-        throw new UnsupportedOperationException();
+        assert(idx >= 0);
+        assert(idx < transitions.length - 1);
+        // transitions[idx] < n <= transitions[idx + 1]
+
+        if (idx % 2 == 0) {
+            if (n == transitions[idx + 1]) {
+                // first value after the segment, not in the set
+                return transitions;
+            } else if (n + 1 == transitions[idx + 1]) {
+                // truncate the end of the segment
+                int[] newTransitions = transitions.clone();
+                newTransitions[idx + 1] = n;
+                return newTransitions;
+            } else {
+                // punch a hole in the segment
+                int[] newTransitions = new int[transitions.length + 2];
+                System.arraycopy(transitions, 0, newTransitions, 0, idx + 1);
+                System.arraycopy(transitions, idx + 1, newTransitions, idx + 3, transitions.length - idx - 1);
+                newTransitions[idx + 1] = n;
+                newTransitions[idx + 2] = n + 1;
+                return newTransitions;
+            }
+        } else {
+            if (n != transitions[idx + 1]) {
+                // in the gap between segments
+                return transitions;
+            } else if (idx + 2 == transitions.length) {
+                // start of the open ended segment
+                if (n == Integer.MAX_VALUE) {
+                    return Arrays.copyOf(transitions, transitions.length - 1);
+                } else {
+                    int[] newTransitions = transitions.clone();
+                    newTransitions[idx + 1] = n + 1;
+                    return newTransitions;
+                }
+            } else if (n + 1 == transitions[idx + 2]) {
+                // drop the single element segment
+                // looks like [idx(...), idx+1(n), idx+2(n+1), ...]
+                int[] newTransitions = new int[transitions.length - 2];
+                System.arraycopy(transitions, 0, newTransitions, 0, idx + 1);
+                System.arraycopy(transitions, idx + 3, newTransitions, idx + 1, transitions.length - idx - 3);
+                return newTransitions;
+            } else {
+                // truncate the start of the segment
+                int[] newTransitions = transitions.clone();
+                newTransitions[idx + 1] = n + 1;
+                return newTransitions;
+            }
+        }
     }
 
     // basic methods
 
+    /*
+     * An immutable view of the current contents, sharing the table.
+     */
+    public FrozenIntRanges freeze() {
+        return new FrozenIntRanges(snapshot());
+    }
+
     public IntRanges clone() {
         IntRanges r = new IntRanges();
-        r.updateTransitionsUnseen(transitions());
+        r._snapshot.set(snapshot());
         return r;
     }
 
     public boolean equals(Object o) {
         if (this == o)
             return true;
-        else if (o != null && o instanceof IntRanges) {
-            return Arrays.equals(transitions(), ((IntRanges)o).transitions());
+        else if (o instanceof IntRanges) {
+            final Snapshot a = snapshot();
+            final Snapshot b = ((IntRanges)o).snapshot();
+            return a.cardinality == b.cardinality && Arrays.equals(a.transitions, b.transitions);
         } else {
-            return false;
+            // the other range-backed sets by table, any other Set by value
+            final int[] other = IntTransitions.transitionsOf(o);
+            if (other != null)
+                return Arrays.equals(transitions(), other);
+            else
+                return super.equals(o);
         }
     }
 
     public String toString() {
-        int[] transitions = transitions();
-
-        if (transitions.length == 0)
-            return "{}";
-        else if (transitions.length == 1)
-            if (transitions[0] != Integer.MAX_VALUE)
-                return "{[" + transitions[0] + ":" + Integer.MAX_VALUE + "]}";
-            else
-                return "{" + transitions[0] + "}";
-        else if (transitions.length == 2)
-            return "{" + transitions[0] + "}";
-        else
-            return segmentsToString(transitions);
+        final StringBuilder sb = new StringBuilder();
+        try {
+            appendTo(sb, transitions());
+        } catch (IOException e) {
+            // not thrown by a StringBuilder
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
     }
 
-    // always more then one segment
-    private static String segmentsToString(int[] transitions) {
-        assert(transitions.length > 2);
+    /*
+     * Writes the set in the notation of toString(), such as {1,[5-900],1000},
+     * a segment at a time, so a large set can go straight to a Writer
+     * without building a String first. parse() reads it back.
+     */
+    public <A extends Appendable> A appendTo(A out) throws IOException {
+        appendTo(out, transitions());
+        return out;
+    }
 
-        final int last = transitions.length - 1;
-        StringBuilder sb = new StringBuilder("{");
+    private static void appendTo(Appendable out, int[] transitions) throws IOException {
+        final char[] digits = new char[11];
 
-        for (int i = 0; i < last; i += 2) {
-            int start = transitions[i];
-            int end = transitions[i+1] - 1;
+        out.append('{');
+        for (int i = 0; i < transitions.length; i += 2) {
+            final int first = transitions[i];
+            final int last = IntTransitions.lastInSegment(transitions, i);
 
             if (i != 0)
-                sb.append(',');
-
-            if (start == end) {
-                sb.append(Integer.toString(start));
+                out.append(',');
+            if (first == last) {
+                appendInt(out, first, digits);
             } else {
-                sb.append("[" + start + "-" + end + "]");
+                out.append('[');
+                appendInt(out, first, digits);
+                out.append('-');
+                appendInt(out, last, digits);
+                out.append(']');
             }
         }
+        out.append('}');
+    }
+
+    // formats n into the end of digits, avoiding a String per value
+    private static void appendInt(Appendable out, int n, char[] digits) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(n);
+            return;
+        }
+
+        int i = digits.length;
+        long v = Math.abs((long) n);
+        do {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (n < 0)
+            digits[--i] = '-';
+
+        for (; i < digits.length; i++)
+            out.append(digits[i]);
+    }
+
+    /*
+     * Reads the notation written by toString(), building the transition
+     * table directly. Segments in ascending order are appended as they are
+     * read; any others are merged in. Whitespace between tokens is ignored.
+     *
+     * Throws IllegalArgumentException if the text is not a valid set.
+     */
+    public static IntRanges parse(CharSequence text) {
+        return fromTransitions(new RangeParser(text).parse());
+    }
+
+    private static final class RangeParser {
+        private final CharSequence text;
+        private int position;
+        private int[] transitions;
+        private int length;
+
+        RangeParser(CharSequence text) {
+            this.text = text;
+            this.position = 0;
+            this.transitions = new int[16];
+            this.length = 0;
+        }
 
-        // open ended
-        if (transitions.length % 2 == 1) {
-            if (transitions[last] == Integer.MAX_VALUE) {
-                sb.append("," + transitions[last]);
+        int[] parse() {
+            expect('{');
+            if (peek() == '}') {
+                position++;
             } else {
-                sb.append(",[" + transitions[last] + "-" + Integer.MAX_VALUE + "]");
+                do {
+                    if (peek() == '[') {
+                        position++;
+                        final int first = parseInt();
+                        expect('-');
+                        final int last = parseInt();
+                        expect(']');
+                        if (first > last)
+                            throw error("backwards segment [" + first + "-" + last + "]");
+                        addSegment(first, last);
+                    } else {
+                        final int n = parseInt();
+                        addSegment(n, n);
+                    }
+                } while (accept(','));
+                expect('}');
             }
+
+            if (peek() != -1)
+                throw error("trailing characters at " + position);
+            return Arrays.copyOf(transitions, length);
         }
 
-        sb.append("}");
-        return sb.toString();
-    }
+        private void addSegment(int first, int last) {
+            if ((length & 1) == 1 || (length > 0 && first < transitions[length - 1])) {
+                // out of order, or inside the open ended segment
+                transitions = IntTransitions.splice(Arrays.copyOf(transitions, length), first, last, true);
+                length = transitions.length;
+                return;
+            }
 
+            if (length > 0 && first == transitions[length - 1])
+                length--;  // continues the previous segment
+            else
+                append(first);
+            if (last != Integer.MAX_VALUE)
+                append(last + 1);
+        }
 
-    // Set methods
+        private void append(int transition) {
+            if (length == transitions.length)
+                transitions = Arrays.copyOf(transitions, 2 * length);
+            transitions[length++] = transition;
+        }
 
-    public int size() {
-        int[] transitions = transitions();
+        private int parseInt() {
+            skipWhitespace();
+            final int start = position;
+            final boolean negative = position < text.length() && text.charAt(position) == '-';
+            if (negative)
+                position++;
+
+            long value = 0;
+            final int digitsStart = position;
+            while (position < text.length() && isDigit(text.charAt(position))) {
+                value = 10 * value + (text.charAt(position++) - '0');
+                if (value > 1L + Integer.MAX_VALUE)
+                    throw error("number out of range at " + start);
+            }
+            if (position == digitsStart)
+                throw error("expected a number at " + start);
 
-        if (transitions.length == 0)
-            return 0;
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE)
+                throw error("number out of range at " + start);
+            return (int) value;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
 
-        final int last = transitions.length - 1;
-        int size = 0;
-        for (int i = 0; i < last; i += 2) {
-            int difference = transitions[i+1] - transitions[i];
-            size += difference;
+        private int peek() {
+            skipWhitespace();
+            return (position < text.length()) ? text.charAt(position) : -1;
         }
 
-        // open ended
-        if (transitions.length % 2 == 1) {
-            size += Integer.MAX_VALUE - transitions[last] + 1;
+        private boolean accept(char c) {
+            if (peek() != c)
+                return false;
+            position++;
+            return true;
         }
 
-        return size;
+        private void expect(char c) {
+            if (!accept(c))
+                throw error("expected '" + c + "' at " + position);
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+                position++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("invalid IntRanges: " + message);
+        }
+    }
+
+
+    // Set methods
+
+    /*
+     * Exact number of values, which can exceed Integer.MAX_VALUE.
+     */
+    public long cardinality() {
+        return snapshot().cardinality;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality(), Integer.MAX_VALUE);
     }
 
     public boolean isEmpty() {
@@ -347,7 +828,14 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
     }
 
     public void clear() {
-        updateTransitionsUnseen(new int[0]);
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            if (snapshot.transitions.length == 0)
+                return;
+            if (updateTransitions(snapshot, EMPTY.transitions, 0))
+                return;
+            // update failed, try again
+        }
     }
 
     public boolean contains(Object o) {
@@ -355,14 +843,128 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
     }
 
     public Iterator<Integer> iterator() {
-        int[] transitions = transitions();
+        return intIterator();
+    }
 
-        if (transitions.length == 0) {
-          Set<Integer> es = Collections.emptySet();
-          return es.iterator();
-        } else {
-            return new IntRangeIterator(transitions[0], transitions, this);
+    public PrimitiveIterator.OfInt intIterator() {
+        return new IntRangeIterator(transitions(), this);
+    }
+
+    /*
+     * Passes every value to action in order, without boxing. Modification
+     * is only detected once the whole snapshot has been walked.
+     */
+    public void forEachInt(IntConsumer action) {
+        final int[] transitions = transitions();
+
+        for (int i = 0; i < transitions.length; i += 2) {
+            final int last = IntTransitions.lastInSegment(transitions, i);
+            for (int n = transitions[i]; n < last; n++)
+                action.accept(n);
+            action.accept(last);
         }
+
+        if (transitions() != transitions)
+            throw new ConcurrentModificationException();
+    }
+
+    public Spliterator.OfInt spliterator() {
+        final Snapshot snapshot = snapshot();
+        return new IntRangeSpliterator(snapshot.transitions, snapshot.cardinality);
+    }
+
+    public IntStream intStream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /*
+     * Passes each segment to action in order as its first and last values,
+     * so a run of a million values is a single call.
+     */
+    public void forEachRange(IntBinaryConsumer action) {
+        final int[] transitions = transitions();
+
+        for (int i = 0; i < transitions.length; i += 2)
+            action.accept(transitions[i], IntTransitions.lastInSegment(transitions, i));
+    }
+
+    public RangeCursor rangeCursor() {
+        return new RangeCursor(transitions());
+    }
+
+    public int rangeCount() {
+        return (transitions().length + 1) / 2;
+    }
+
+    // positional access and navigation, all O(log segments)
+
+    /*
+     * Number of values in the set less than x.
+     */
+    public long rank(int x) {
+        return snapshot().rank(this, x);
+    }
+
+    /*
+     * The value with k smaller values in the set, so select(0) is the
+     * least value.
+     */
+    public int select(long k) {
+        return snapshot().select(k);
+    }
+
+    public int first() {
+        final int[] transitions = transitions();
+        if (transitions.length == 0)
+            throw new NoSuchElementException();
+        return transitions[0];
+    }
+
+    public int last() {
+        final int[] transitions = transitions();
+        if (transitions.length == 0)
+            throw new NoSuchElementException();
+        return IntTransitions.lastInSegment(transitions, (transitions.length - 1) & ~1);
+    }
+
+    /*
+     * As in NavigableSet, these return null when there is no such value.
+     */
+    public Integer ceiling(int x) {
+        return boxed(snapshot().ceiling(this, x));
+    }
+
+    public Integer floor(int x) {
+        return boxed(snapshot().floor(this, x));
+    }
+
+    public Integer higher(int x) {
+        return boxed(snapshot().ceiling(this, x + 1L));
+    }
+
+    public Integer lower(int x) {
+        return boxed(snapshot().floor(this, x - 1L));
+    }
+
+    private static Integer boxed(long n) {
+        return (n == Snapshot.NONE) ? null : Integer.valueOf((int) n);
+    }
+
+    /*
+     * Live views of part of the set, as in SortedSet: changes through the
+     * view or to the set show up in both.
+     */
+    public SubSet headSet(int toExclusive) {
+        return new SubSet(this, Integer.MIN_VALUE, toExclusive);
+    }
+
+    public SubSet tailSet(int fromInclusive) {
+        return new SubSet(this, fromInclusive, Integer.MAX_VALUE + 1L);
+    }
+
+    public SubSet subSet(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        return new SubSet(this, fromInclusive, toExclusive);
     }
 
     public boolean add(Integer o) {
@@ -373,90 +975,865 @@ public final class IntRanges extends AbstractSet<Integer> implements Cloneable {
         return remove((int)((Integer) o));
     }
 
-    /* could add for performance
-
     public boolean containsAll(Collection<?> c) {
-        // TODO Auto-generated method stub
-        return false;
+        if (c instanceof IntRanges) {
+            final int[] other = ((IntRanges) c).transitions();
+            return IntTransitions.mergedLength(other, transitions(), IntTransitions.DIFFERENCE) == 0;
+        } else {
+            return super.containsAll(c);
+        }
     }
 
     public boolean addAll(Collection<? extends Integer> c) {
-        // TODO Auto-generated method stub
-        return false;
+        if (c instanceof IntRanges)
+            return merge(((IntRanges) c).transitions(), IntTransitions.UNION);
+        else
+            return super.addAll(c);
     }
 
     public boolean retainAll(Collection<?> c) {
-        // TODO Auto-generated method stub
-        return false;
+        if (c instanceof IntRanges)
+            return merge(((IntRanges) c).transitions(), IntTransitions.INTERSECTION);
+        else
+            return super.retainAll(c);
     }
 
     public boolean removeAll(Collection<?> c) {
-        // TODO Auto-generated method stub
-        return false;
+        if (c instanceof IntRanges)
+            return merge(((IntRanges) c).transitions(), IntTransitions.DIFFERENCE);
+        else
+            return super.removeAll(c);
     }
-    */
 
+    /*
+     * Adds all the values, in any order, with one merge and one CAS rather
+     * than a table copy per value. The array itself is left untouched.
+     */
+    public boolean addAll(int[] values) {
+        // one pass to check the order, and a copy only if it has to be sorted
+        final int[] sorted;
+        if (IntTransitions.isSorted(values, values.length))
+            sorted = values;
+        else
+            sorted = sort(values.clone(), values.length);
+        return merge(IntTransitions.fromSorted(sorted, sorted.length), IntTransitions.UNION);
+    }
 
-    private static class IntRangeIterator implements Iterator<Integer> {
-        private final int[] transitions;
+    public boolean addAll(IntStream values) {
+        final int[] collected = values.toArray();
+        return merge(sortedTransitions(collected, collected.length), IntTransitions.UNION);
+    }
+
+    // sorts values[0, count) in place where needed, then builds a table
+    // sorts values in place if they need it, so only for arrays we own
+    private static int[] sortedTransitions(int[] values, int count) {
+        if (!IntTransitions.isSorted(values, count))
+            sort(values, count);
+        return IntTransitions.fromSorted(values, count);
+    }
+
+    private static int[] sort(int[] values, int count) {
+        if (count >= PARALLEL_SORT_THRESHOLD)
+            Arrays.parallelSort(values, 0, count);
+        else
+            Arrays.sort(values, 0, count);
+        return values;
+    }
+
+    boolean merge(int[] other, int op) {
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            final int[] transitions = snapshot.transitions;
+            final int[] newTransitions = IntTransitions.merge(transitions, other, op);
+
+            if (transitions == newTransitions) {
+                return false;
+            } else {
+                if (updateTransitions(snapshot, newTransitions, IntTransitions.cardinality(newTransitions)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+
+    // batch queries
+
+    /*
+     * Sets out[k] to whether ids[k] is in the set, for every k, all
+     * against the same snapshot. Ids in ascending order are answered in
+     * one pass, galloping forward through the table from each answer to
+     * the next. Others are each searched for, in parallel for large
+     * batches.
+     */
+    public void containsEach(int[] ids, boolean[] out) {
+        if (out.length < ids.length)
+            throw new IllegalArgumentException("out.length(" + out.length + ") < ids.length(" + ids.length + ")");
+        containsEach(transitions(), ids, out);
+    }
+
+    private void containsEach(int[] transitions, int[] ids, boolean[] out) {
+        if (IntTransitions.isSorted(ids, ids.length)) {
+            int i = 0;
+            for (int k = 0; k < ids.length; k++) {
+                final int from = i;
+                i = IntTransitions.gallopGreaterThan(transitions, from, ids[k]);
+                if (METRICS)
+                    reportSearched(IntTransitions.gallopGreaterThanProbes(transitions.length, from, ids[k], i));
+                out[k] = (i & 1) == 1;
+            }
+        } else if (ids.length >= PARALLEL_QUERY_THRESHOLD) {
+            IntStream.range(0, ids.length).parallel()
+                .forEach(k -> out[k] = containedIn(transitions, ids[k]));
+        } else {
+            for (int k = 0; k < ids.length; k++)
+                out[k] = containedIn(transitions, ids[k]);
+        }
+    }
+
+    private boolean containedIn(int[] transitions, int n) {
+        final int i = IntTransitions.firstGreaterThan(transitions, n);
+        if (METRICS)
+            reportSearched(IntTransitions.firstGreaterThanProbes(transitions.length, n, i));
+        return (i & 1) == 1;
+    }
+
+    /*
+     * The ids that are in the set, in their original order.
+     */
+    public int[] filter(int[] ids) {
+        final boolean[] in = new boolean[ids.length];
+        containsEach(transitions(), ids, in);
+
+        final int[] found = new int[count(in)];
+        int j = 0;
+        for (int k = 0; k < ids.length; k++) {
+            if (in[k])
+                found[j++] = ids[k];
+        }
+        return found;
+    }
+
+    /*
+     * Number of the ids that are in the set, counting repeats each time.
+     */
+    public int count(int[] ids) {
+        final boolean[] in = new boolean[ids.length];
+        containsEach(transitions(), ids, in);
+        return count(in);
+    }
+
+    public boolean containsAll(int[] ids) {
+        return count(ids) == ids.length;
+    }
+
+    private static int count(boolean[] in) {
+        int count = 0;
+        for (boolean b : in) {
+            if (b)
+                count++;
+        }
+        return count;
+    }
+
+
+    // metrics
+
+    public static boolean metricsEnabled() {
+        return METRICS;
+    }
+
+    /*
+     * Installs the sink every IntRanges in the JVM reports to, replacing
+     * any before it, or removes it if null. Only allowed when metrics
+     * were switched on at startup, as otherwise nothing would report.
+     */
+    public static void setMetrics(IntRangesMetrics sink) {
+        if (!METRICS)
+            throw new IllegalStateException("run with -Dcom.sunsetutopia.utils.IntRanges.metrics=true to use metrics");
+        metrics = sink;
+    }
+
+    // the hooks are kept out of line so the hot paths stay small
+
+    private void reportCasFailed(int[] wasted) {
+        final IntRangesMetrics sink = metrics;
+        if (sink != null)
+            sink.casFailed(this, 4 * wasted.length);
+    }
+
+    private void reportUpdated(int[] published) {
+        final IntRangesMetrics sink = metrics;
+        if (sink != null)
+            sink.updated(this, 4 * published.length, (published.length + 1) / 2);
+    }
+
+    private void reportSearched(int probes) {
+        final IntRangesMetrics sink = metrics;
+        if (sink != null)
+            sink.searched(this, probes);
+    }
+
+
+    // change notification
+
+    /*
+     * Registers listener to be told of every later change. Registration
+     * takes a lock, but updates only read the current listener array.
+     */
+    public synchronized void addListener(IntRangesListener listener) {
+        final IntRangesListener[] listeners = Arrays.copyOf(_listeners, _listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        _listeners = listeners;
+    }
+
+    public synchronized void removeListener(IntRangesListener listener) {
+        final IntRangesListener[] listeners = _listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final IntRangesListener[] newListeners = new IntRangesListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                _listeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /*
+     * The change is already published, so a listener that throws must not
+     * make the update look failed, or keep the change from the others. Its
+     * exception goes to the thread's uncaught exception handler instead.
+     */
+    private void fireChanged(IntRangesListener[] listeners, Delta delta) {
+        for (IntRangesListener listener : listeners) {
+            try {
+                listener.changed(this, delta);
+            } catch (RuntimeException e) {
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    /*
+     * The change that turns this set into other, found by linear merges
+     * of the two tables. It runs from this set's version to other's,
+     * which only mean something if other is a later copy of this set.
+     */
+    public Delta diff(IntRanges other) {
+        return diff(snapshot(), other.snapshot());
+    }
+
+    private static Delta diff(Snapshot from, Snapshot to) {
+        return new Delta(IntTransitions.merge(to.transitions, from.transitions, IntTransitions.DIFFERENCE),
+                IntTransitions.merge(from.transitions, to.transitions, IntTransitions.DIFFERENCE),
+                from.version, to.version);
+    }
+
+    /*
+     * Removes the delta's removed ranges and adds its added ones, in one
+     * update. The delta's versions are not checked; a replica that cares
+     * about order should apply deltas by fromVersion and stop at a gap.
+     */
+    public boolean apply(Delta delta) {
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            final int[] transitions = snapshot.transitions;
+            final int[] newTransitions = IntTransitions.merge(
+                    IntTransitions.merge(transitions, delta.removed, IntTransitions.DIFFERENCE),
+                    delta.added, IntTransitions.UNION);
+
+            if (transitions == newTransitions) {
+                return false;
+            } else {
+                if (updateTransitions(snapshot, newTransitions, IntTransitions.cardinality(newTransitions)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    /*
+     * The values added and removed by a change, each as a transition
+     * table, so a change of a million values in one range is two ints.
+     * A change reported to a listener turns version fromVersion of the
+     * set into version toVersion, which is always one more.
+     */
+    public static final class Delta {
+        final int[] added;
+        final int[] removed;
+        final long fromVersion;
+        final long toVersion;
+
+        Delta(int[] added, int[] removed, long fromVersion, long toVersion) {
+            this.added = added;
+            this.removed = removed;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        public long fromVersion() {
+            return fromVersion;
+        }
+
+        public long toVersion() {
+            return toVersion;
+        }
+
+        public boolean isEmpty() {
+            return added.length == 0 && removed.length == 0;
+        }
+
+        public IntRanges added() {
+            return fromTransitions(added);
+        }
+
+        public IntRanges removed() {
+            return fromTransitions(removed);
+        }
+
+        public void forEachAdded(IntBinaryConsumer action) {
+            forEachRange(added, action);
+        }
+
+        public void forEachRemoved(IntBinaryConsumer action) {
+            forEachRange(removed, action);
+        }
+
+        private static void forEachRange(int[] transitions, IntBinaryConsumer action) {
+            for (int i = 0; i < transitions.length; i += 2)
+                action.accept(transitions[i], IntTransitions.lastInSegment(transitions, i));
+        }
+
+        /*
+         * The two versions as plain longs, then the added and removed
+         * tables each in the same form as IntRanges.writeTo.
+         */
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeLong(fromVersion);
+            out.writeLong(toVersion);
+            writeTransitions(out, added);
+            writeTransitions(out, removed);
+        }
+
+        public static Delta readFrom(DataInput in) throws IOException {
+            final long fromVersion = in.readLong();
+            final long toVersion = in.readLong();
+            final int[] added = readTransitions(in);
+            final int[] removed = readTransitions(in);
+            return new Delta(added, removed, fromVersion, toVersion);
+        }
+
+        public byte[] toBytes() {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                writeTo(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                // not thrown by an in-memory stream
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        public static Delta fromBytes(byte[] bytes) {
+            try {
+                return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("not an encoded IntRanges.Delta", e);
+            }
+        }
+
+        public String toString() {
+            return "+" + added() + " -" + removed();
+        }
+    }
+
+
+    // serialization
+
+    /*
+     * Writes the transition table, never the values: a version byte, the
+     * number of transitions, the first transition zigzag encoded and then
+     * the gaps between transitions less one, all as varints. A run of a
+     * million values near zero takes six bytes.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeTransitions(out, transitions());
+    }
+
+    private static void writeTransitions(DataOutput out, int[] transitions) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        VarInts.write(out, transitions.length);
+        for (int i = 0; i < transitions.length; i++) {
+            if (i == 0)
+                VarInts.write(out, VarInts.zigZag(transitions[0]));
+            else
+                VarInts.write(out, transitions[i] - transitions[i - 1] - 1);
+        }
+    }
+
+    public static IntRanges readFrom(DataInput in) throws IOException {
+        return fromTransitions(readTransitions(in));
+    }
+
+    private static int[] readTransitions(DataInput in) throws IOException {
+        final int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION)
+            throw new StreamCorruptedException("unsupported IntRanges format " + version);
+
+        final int length = VarInts.read(in);
+        if (length < 0)
+            throw new StreamCorruptedException("transition count " + length);
+
+        // grow as the data arrives rather than trusting the count up front
+        int[] transitions = new int[Math.min(length, 1024)];
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            final long next;
+            if (i == 0)
+                next = VarInts.unZigZag(VarInts.read(in));
+            else
+                next = previous + (VarInts.read(in) & 0xFFFFFFFFL) + 1;
+            if (next > Integer.MAX_VALUE)
+                throw new StreamCorruptedException("transition " + i + " out of range");
+
+            if (i == transitions.length)
+                transitions = Arrays.copyOf(transitions, (int) Math.min(length, 2L * i));
+            transitions[i] = (int) next;
+            previous = next;
+        }
+        return transitions;
+    }
+
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // not thrown by an in-memory stream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static IntRanges fromBytes(byte[] bytes) {
+        try {
+            return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("not an encoded IntRanges", e);
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        updateTransitionsUnseen(readTransitions(in));
+    }
+
+    /*
+     * The values of a set within [from, to). The bounds are longs so the
+     * view can reach MAX_VALUE. Adding a value outside them throws
+     * IllegalArgumentException, as in TreeSet.
+     */
+    public static final class SubSet extends AbstractSet<Integer> {
         private final IntRanges parent;
+        private final long from;
+        private final long to;
+
+        SubSet(IntRanges parent, long from, long to) {
+            this.parent = parent;
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean inRange(int n) {
+            return n >= from && n < to;
+        }
+
+        private void checkInRange(int n) {
+            if (!inRange(n))
+                throw new IllegalArgumentException(n + " out of range [" + from + ", " + to + ")");
+        }
+
+        public boolean contains(int n) {
+            return inRange(n) && parent.contains(n);
+        }
+
+        public boolean add(int n) {
+            checkInRange(n);
+            return parent.add(n);
+        }
+
+        public boolean remove(int n) {
+            return inRange(n) && parent.remove(n);
+        }
+
+        public long cardinality() {
+            final Snapshot snapshot = parent.snapshot();
+            return snapshot.rank(parent, to) - snapshot.rank(parent, from);
+        }
+
+        public int size() {
+            return (int) Math.min(cardinality(), Integer.MAX_VALUE);
+        }
+
+        public boolean isEmpty() {
+            final long n = parent.snapshot().ceiling(parent, from);
+            return n == Snapshot.NONE || n >= to;
+        }
+
+        public void clear() {
+            if (from < to)
+                parent.splice((int) from, (int) (to - 1), false);
+        }
+
+        public int first() {
+            final long n = parent.snapshot().ceiling(parent, from);
+            if (n == Snapshot.NONE || n >= to)
+                throw new NoSuchElementException();
+            return (int) n;
+        }
+
+        public int last() {
+            final long n = parent.snapshot().floor(parent, to - 1);
+            if (n == Snapshot.NONE || n < from)
+                throw new NoSuchElementException();
+            return (int) n;
+        }
+
+        public SubSet headSet(int toExclusive) {
+            return subSet(from, toExclusive);
+        }
+
+        public SubSet tailSet(int fromInclusive) {
+            return subSet(fromInclusive, to);
+        }
+
+        public SubSet subSet(int fromInclusive, int toExclusive) {
+            checkRange(fromInclusive, toExclusive);
+            return subSet((long) fromInclusive, (long) toExclusive);
+        }
+
+        private SubSet subSet(long newFrom, long newTo) {
+            if (newFrom < from || newTo > to || newFrom > newTo)
+                throw new IllegalArgumentException("[" + newFrom + ", " + newTo + ") out of range [" + from + ", " + to + ")");
+            return new SubSet(parent, newFrom, newTo);
+        }
+
+        /*
+         * A copy of the values in range.
+         */
+        public IntRanges toIntRanges() {
+            return fromTransitions(parent.snapshot().clip(from, to));
+        }
+
+        public String toString() {
+            return toIntRanges().toString();
+        }
+
+        public boolean contains(Object o) {
+            return contains((int)((Integer) o));
+        }
+
+        public boolean add(Integer o) {
+            return add((int) o);
+        }
+
+        public boolean remove(Object o) {
+            return remove((int)((Integer) o));
+        }
+
+        public Iterator<Integer> iterator() {
+            return intIterator();
+        }
+
+        public PrimitiveIterator.OfInt intIterator() {
+            return toIntRanges().intIterator();
+        }
+
+        public void forEachInt(IntConsumer action) {
+            toIntRanges().forEachInt(action);
+        }
+    }
+
+    /*
+     * Buffers values and ranges, then sorts and coalesces them into a set
+     * in one go, instead of copying the table for every value added.
+     */
+    public static final class Builder {
+        private int[] values;
+        private int count;
+        private int[] ranges;
+
+        public Builder() {
+            values = new int[16];
+            count = 0;
+            ranges = new int[0];
+        }
+
+        public Builder add(int n) {
+            ensureCapacity(1);
+            values[count++] = n;
+            return this;
+        }
+
+        public Builder addAll(int... ns) {
+            ensureCapacity(ns.length);
+            System.arraycopy(ns, 0, values, count, ns.length);
+            count += ns.length;
+            return this;
+        }
+
+        public Builder addRange(int fromInclusive, int toExclusive) {
+            checkRange(fromInclusive, toExclusive);
+            if (fromInclusive != toExclusive)
+                ranges = IntTransitions.splice(ranges, fromInclusive, toExclusive - 1, true);
+            return this;
+        }
+
+        public IntRanges build() {
+            return fromTransitions(IntTransitions.merge(sortedTransitions(values, count), ranges, IntTransitions.UNION));
+        }
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > values.length)
+                values = Arrays.copyOf(values, Math.max(values.length * 2, count + extra));
+        }
+    }
+
+    /*
+     * Steps through the segments of a snapshot. next() moves on to the
+     * following segment, whose bounds are then given by first() and last().
+     */
+    public static final class RangeCursor {
+        private final int[] transitions;
+        private int segment;
+
+        private RangeCursor(int[] transitions) {
+            this.transitions = transitions;
+            this.segment = -2;
+        }
+
+        public boolean next() {
+            if (segment + 2 < transitions.length) {
+                segment += 2;
+                return true;
+            } else {
+                segment = transitions.length;
+                return false;
+            }
+        }
+
+        public int first() {
+            checkOnSegment();
+            return transitions[segment];
+        }
+
+        public int last() {
+            checkOnSegment();
+            return IntTransitions.lastInSegment(transitions, segment);
+        }
+
+        private void checkOnSegment() {
+            if (segment < 0 || segment >= transitions.length)
+                throw new IllegalStateException();
+        }
+    }
+
+    /*
+     * Splits a snapshot at segment boundaries, and a lone segment in half
+     * arithmetically, always knowing exactly how many values it covers.
+     *
+     * Covers the segments from segment to fenceSegment, starting at next
+     * and stopping at fenceLast.
+     */
+    static final class IntRangeSpliterator implements Spliterator.OfInt {
+        private final int[] transitions;
+        private int segment;
         private int next;
-        private int nextTransition;
+        private final int fenceSegment;
+        private final int fenceLast;
+        private long remaining;
+
+        IntRangeSpliterator(int[] transitions, long cardinality) {
+            this.transitions = transitions;
+            this.segment = 0;
+            this.remaining = cardinality;
+            if (transitions.length > 0) {
+                this.next = transitions[0];
+                this.fenceSegment = (transitions.length - 1) & ~1;
+                this.fenceLast = IntTransitions.lastInSegment(transitions, fenceSegment);
+            } else {
+                this.fenceSegment = 0;
+                this.fenceLast = 0;
+            }
+        }
 
-        public IntRangeIterator(int next, int[] transitions, IntRanges parent) {
+        private IntRangeSpliterator(int[] transitions, int segment, int next, int fenceSegment, int fenceLast, long remaining) {
+            this.transitions = transitions;
+            this.segment = segment;
             this.next = next;
+            this.fenceSegment = fenceSegment;
+            this.fenceLast = fenceLast;
+            this.remaining = remaining;
+        }
+
+        private int lastIn(int seg) {
+            return (seg == fenceSegment) ? fenceLast : IntTransitions.lastInSegment(transitions, seg);
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (remaining == 0)
+                return false;
+
+            final int n = next;
+            remaining--;
+            if (remaining > 0) {
+                if (n != lastIn(segment)) {
+                    next = n + 1;
+                } else {
+                    segment += 2;
+                    next = transitions[segment];
+                }
+            }
+            action.accept(n);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            if (remaining == 0)
+                return;
+
+            final int from = segment;
+            final int first = next;
+            remaining = 0;
+
+            for (int seg = from; seg <= fenceSegment; seg += 2) {
+                final int last = lastIn(seg);
+                for (int n = (seg == from) ? first : transitions[seg]; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+            }
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            if (remaining < 2)
+                return null;
+
+            final IntRangeSpliterator prefix;
+            if (segment < fenceSegment) {
+                // hand over the first half of the segments
+                final int leftSegments = ((fenceSegment - segment) / 2 + 1) / 2;
+                final int leftFence = segment + 2 * (leftSegments - 1);
+                final int leftLast = IntTransitions.lastInSegment(transitions, leftFence);
+
+                long leftSize = (long) lastIn(segment) - next + 1;
+                for (int seg = segment + 2; seg <= leftFence; seg += 2)
+                    leftSize += (long) lastIn(seg) - transitions[seg] + 1;
+
+                prefix = new IntRangeSpliterator(transitions, segment, next, leftFence, leftLast, leftSize);
+                segment = leftFence + 2;
+                next = transitions[segment];
+                remaining -= leftSize;
+            } else {
+                // a single segment, split it down the middle
+                final long half = remaining / 2;
+                prefix = new IntRangeSpliterator(transitions, segment, next, segment, (int) (next + half - 1), half);
+                next = (int) (next + half);
+                remaining -= half;
+            }
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return SIZED | SUBSIZED | ORDERED | SORTED | DISTINCT | IMMUTABLE | NONNULL;
+        }
+
+        @Override
+        public Comparator<? super Integer> getComparator() {
+            // natural ordering
+            return null;
+        }
+    }
+
+    /*
+     * Walks a snapshot segment by segment, only checking the parent for
+     * modification when moving on to the next segment.
+     */
+    private static class IntRangeIterator implements PrimitiveIterator.OfInt {
+        private final int[] transitions;
+        private final IntRanges parent;
+        private int segment;
+        private int next;
+        private int last;
+
+        public IntRangeIterator(int[] transitions, IntRanges parent) {
             this.transitions = transitions;
-            this.nextTransition = 1;
             this.parent = parent;
+            this.segment = 0;
+            if (transitions.length > 0) {
+                this.next = transitions[0];
+                this.last = IntTransitions.lastInSegment(transitions, 0);
+            }
         }
 
         @Override
         public boolean hasNext() {
-            return (nextTransition > 0) && nextTransition <= transitions.length;
+            return segment < transitions.length;
         }
 
-        /*
-         * Example:
-        (2,4,6,8) start n=2, nt=1
-            hn()=true, next()=2, set n=3
-            hn()=true, next()=3, set n=6, nt=3
-            hn()=true, next()=6, set n=7
-            hn()=true, next()=7, set n=8, nt=5
-            hn()=false
-        */
-
         @Override
-        public Integer next() {
-            if (parent.transitions() != transitions)
-                throw new ConcurrentModificationException();
+        public int nextInt() {
             if (!hasNext())
-                throw new IllegalStateException();
+                throw new NoSuchElementException();
 
-            int n = next;
-
-            if (next == Integer.MAX_VALUE) {
-                // always end here
-                nextTransition = -1;
-            } else if (nextTransition >= transitions.length) {
-                // stream to the end
-                next = next + 1;
-                //nextTransition = -1;
-            } else if (next + 1 == transitions[nextTransition]) {
-                // transitioning to off state
-                if (nextTransition + 1 == transitions.length) {
-                    // that it
-                    nextTransition = -1;
-                } else {
-                    next = transitions[nextTransition+1];
-                    nextTransition += 2;
-                }
+            final int n = next;
+            if (n != last) {
+                next = n + 1;
             } else {
-                // move on
-                next = next + 1;
+                // end of this segment
+                if (parent.transitions() != transitions)
+                    throw new ConcurrentModificationException();
+
+                segment += 2;
+                if (segment < transitions.length) {
+                    next = transitions[segment];
+                    last = IntTransitions.lastInSegment(transitions, segment);
+                }
             }
             return n;
         }
 
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            while (hasNext()) {
+                for (int n = next; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+
+                segment += 2;
+                if (segment < transitions.length) {
+                    next = transitions[segment];
+                    last = IntTransitions.lastInSegment(transitions, segment);
+                }
+            }
+
+            if (parent.transitions() != transitions)
+                throw new ConcurrentModificationException();
+        }
+
         @Override
         public void remove() {
             throw new UnsupportedOperationException();
@@ -0,0 +1,116 @@
+package com.sunsetutopia.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * IntRangesMetrics that totals what it is told across every set and
+ * thread.
+ *
+ * Segment counts and search lengths, in transitions read, are kept as
+ * power of two histograms: bucket 0 counts zeros, and bucket b counts
+ * values in [2^(b-1), 2^b).
+ */
+public final class IntRangesCounters implements IntRangesMetrics {
+    static final int BUCKETS = 33;
+
+    private final LongAdder casFailures = new LongAdder();
+    private final LongAdder wastedBytes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder copiedBytes = new LongAdder();
+    private final AtomicLongArray segments = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray searchLengths = new AtomicLongArray(BUCKETS);
+
+    static int bucket(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n);
+    }
+
+    @Override
+    public void casFailed(IntRanges source, int bytesCopied) {
+        casFailures.increment();
+        wastedBytes.add(bytesCopied);
+    }
+
+    @Override
+    public void updated(IntRanges source, int bytesCopied, int segmentCount) {
+        updates.increment();
+        copiedBytes.add(bytesCopied);
+        segments.incrementAndGet(bucket(segmentCount));
+    }
+
+    @Override
+    public void searched(IntRanges source, int probes) {
+        searchLengths.incrementAndGet(bucket(probes));
+    }
+
+    public long casFailures() {
+        return casFailures.sum();
+    }
+
+    // bytes of table built by updates that then lost their CAS
+    public long wastedBytes() {
+        return wastedBytes.sum();
+    }
+
+    public long updates() {
+        return updates.sum();
+    }
+
+    // bytes of table built by updates that were published
+    public long copiedBytes() {
+        return copiedBytes.sum();
+    }
+
+    public long[] segmentHistogram() {
+        return toArray(segments);
+    }
+
+    public long[] searchLengthHistogram() {
+        return toArray(searchLengths);
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = histogram.get(i);
+        return counts;
+    }
+
+    public void reset() {
+        casFailures.reset();
+        wastedBytes.reset();
+        updates.reset();
+        copiedBytes.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            segments.set(i, 0);
+            searchLengths.set(i, 0);
+        }
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("updates=").append(updates())
+          .append(" copiedBytes=").append(copiedBytes())
+          .append(" casFailures=").append(casFailures())
+          .append(" wastedBytes=").append(wastedBytes());
+        appendHistogram(sb.append(" segments="), segments);
+        appendHistogram(sb.append(" searchLengths="), searchLengths);
+        return sb.toString();
+    }
+
+    // only the non-empty buckets, by their lower bound, such as {1:5,64:2}
+    private static void appendHistogram(StringBuilder sb, AtomicLongArray histogram) {
+        sb.append('{');
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = histogram.get(i);
+            if (count != 0) {
+                if (!first)
+                    sb.append(',');
+                sb.append((i == 0) ? 0 : 1L << (i - 1)).append(':').append(count);
+                first = false;
+            }
+        }
+        sb.append('}');
+    }
+}
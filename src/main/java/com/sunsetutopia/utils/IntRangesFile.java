@@ -0,0 +1,176 @@
+package com.sunsetutopia.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+ * On-disk format for an IntRanges transition table.
+ *
+ * All fields are little-endian:
+ *
+ *   magic     4 bytes  "IRNG"
+ *   version   u16      currently 1
+ *   flags     u16      reserved, 0
+ *   count     i32      number of transitions
+ *   table     count x i32, strictly increasing
+ *   checksum  u32      CRC32 of everything before it
+ *
+ * The table is laid out exactly as IntRanges holds it in memory, so a
+ * mapped file can be searched in place by MappedIntRanges without
+ * decoding. Opening a file reads it once, to check the checksum and
+ * that the table is sorted, but never copies it.
+ */
+public final class IntRangesFile {
+    static final int MAGIC = 'I' | ('R' << 8) | ('N' << 16) | ('G' << 24);
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 12;
+    static final int CHECKSUM_BYTES = 4;
+
+    // transitions written per chunk when streaming to a channel
+    private static final int WRITE_CHUNK = 1 << 14;
+
+    private IntRangesFile() {
+    }
+
+    /*
+     * Number of bytes the encoded form of ranges takes.
+     */
+    public static long encodedSize(IntRanges ranges) {
+        return encodedSize(ranges.transitions().length);
+    }
+
+    private static long encodedSize(int count) {
+        return HEADER_BYTES + 4L * count + CHECKSUM_BYTES;
+    }
+
+    public static void write(IntRanges ranges, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(ranges, channel);
+        }
+    }
+
+    /*
+     * Streams the encoded form to channel in fixed-size chunks, so the
+     * table is never duplicated in memory.
+     */
+    public static void write(IntRanges ranges, WritableByteChannel channel) throws IOException {
+        final int[] transitions = ranges.transitions();
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+        putHeader(buffer, transitions.length);
+        flush(buffer, crc, channel);
+        for (int i = 0; i < transitions.length; i += WRITE_CHUNK) {
+            final int n = Math.min(WRITE_CHUNK, transitions.length - i);
+            buffer.asIntBuffer().put(transitions, i, n);
+            buffer.position(4 * n);
+            flush(buffer, crc, channel);
+        }
+
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void flush(ByteBuffer buffer, CRC32 crc, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /*
+     * Encodes ranges into a new off-heap buffer, ready for wrap().
+     */
+    public static ByteBuffer toDirectBuffer(IntRanges ranges) {
+        final int[] transitions = ranges.transitions();
+        final long size = encodedSize(transitions.length);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many transitions for one buffer: " + transitions.length);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(buffer, transitions.length);
+        buffer.asIntBuffer().put(transitions);
+        buffer.position(HEADER_BYTES + 4 * transitions.length);
+
+        final ByteBuffer covered = buffer.duplicate();
+        covered.flip();
+        final CRC32 crc = new CRC32();
+        crc.update(covered);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putHeader(ByteBuffer buffer, int count) {
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(count);
+    }
+
+    /*
+     * Maps the file read-only and wraps it. The mapping stays valid after
+     * the channel is closed.
+     */
+    public static MappedIntRanges map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("file too large to map: " + size + " bytes");
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /*
+     * Reads ranges back from the buffer's remaining bytes, which must hold
+     * exactly one encoded table. The returned set reads the buffer in
+     * place, so it must not be modified afterwards.
+     *
+     * Throws IllegalArgumentException if the header, checksum or table is
+     * not valid.
+     */
+    public static MappedIntRanges wrap(ByteBuffer buffer) {
+        final ByteBuffer bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.remaining() < HEADER_BYTES + CHECKSUM_BYTES)
+            throw new IllegalArgumentException("truncated header: " + bytes.remaining() + " bytes");
+        if (bytes.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("not an IntRanges file");
+        final int version = bytes.getShort(4) & 0xFFFF;
+        if (version != VERSION)
+            throw new IllegalArgumentException("unsupported version " + version);
+
+        final int count = bytes.getInt(8);
+        if (count < 0 || encodedSize(count) != bytes.remaining())
+            throw new IllegalArgumentException("length " + bytes.remaining() + " does not match " + count + " transitions");
+
+        final int tableEnd = HEADER_BYTES + 4 * count;
+        final ByteBuffer covered = bytes.duplicate();
+        covered.position(0).limit(tableEnd);
+        final CRC32 crc = new CRC32();
+        crc.update(covered);
+        if ((int) crc.getValue() != bytes.getInt(tableEnd))
+            throw new IllegalArgumentException("checksum mismatch");
+
+        bytes.position(HEADER_BYTES).limit(tableEnd);
+        final IntBuffer transitions = bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        long cardinality = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && transitions.get(i - 1) >= transitions.get(i))
+                throw new IllegalArgumentException("transitions not increasing at " + i);
+            if ((i & 1) == 0)
+                cardinality += (long) IntTransitions.lastInSegment(transitions, i) - transitions.get(i) + 1;
+        }
+        return new MappedIntRanges(transitions, cardinality);
+    }
+}
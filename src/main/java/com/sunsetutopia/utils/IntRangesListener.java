@@ -0,0 +1,20 @@
+package com.sunsetutopia.utils;
+
+/*
+ * Told of every change to an IntRanges, after the new state is published,
+ * on the thread that made it. Each delta is exact against the state it
+ * replaced, but changes racing on different threads may be reported in
+ * either order. Their versions put them back in order: a replica applies
+ * the delta whose fromVersion is the last toVersion it applied, and holds
+ * later ones until the gap is filled.
+ *
+ * A listener runs inside add(), remove() and the rest, so it should be
+ * quick. The delta is only worked out while a listener is registered. An
+ * exception thrown by a listener does not undo the change or reach the
+ * caller: it is passed to the thread's uncaught exception handler, and
+ * the remaining listeners are still told.
+ */
+@FunctionalInterface
+public interface IntRangesListener {
+    void changed(IntRanges source, IntRanges.Delta delta);
+}
@@ -0,0 +1,34 @@
+package com.sunsetutopia.utils;
+
+/*
+ * Told about the work IntRanges does, once installed with
+ * IntRanges.setMetrics() in a JVM started with metrics switched on.
+ *
+ * Calls are made on the thread doing the work, from inside its update or
+ * lookup, so they should be quick and must not touch the set.
+ */
+public interface IntRangesMetrics {
+    /*
+     * An update lost its CAS to another writer and will retry, throwing
+     * away the bytesCopied bytes of table it had built.
+     */
+    default void casFailed(IntRanges source, int bytesCopied) {
+    }
+
+    /*
+     * An update published a new table of bytesCopied bytes, holding
+     * segments ranges. Every change reports this, clear() included.
+     */
+    default void updated(IntRanges source, int bytesCopied, int segments) {
+    }
+
+    /*
+     * A lookup searched the table, reading probes transitions to do it.
+     * contains(int), rank, ceiling, floor, higher, lower, the lookups of
+     * a SubSet, and each id of a batch query report once per search.
+     * select and iteration walk the table without searching it, and do
+     * not report.
+     */
+    default void searched(IntRanges source, int probes) {
+    }
+}
@@ -0,0 +1,382 @@
+package com.sunsetutopia.utils;
+
+import java.nio.IntBuffer;
+
+/*
+ * Lookups over a sorted transition table, as used by IntRanges.
+ *
+ * Small tables are scanned linearly: the scan streams through memory with
+ * a predictable branch and beats a binary search up to a few hundred
+ * entries. Larger tables use a branch-free binary search, so the loop
+ * runs a fixed log2(n) steps and the comparison can compile to a
+ * conditional move rather than a mispredicted branch.
+ */
+final class IntTransitions {
+    // tables at or below this length are scanned linearly
+    static final int LINEAR_SEARCH_LIMIT = 256;
+
+    /*
+     * Set operations for merge, as truth tables indexed by
+     * (inA ? 2 : 0) | (inB ? 1 : 0). Absent from both must stay absent.
+     */
+    static final int UNION = 0xE;
+    static final int INTERSECTION = 0x8;
+    static final int DIFFERENCE = 0x4;
+
+    private IntTransitions() {
+    }
+
+    /*
+     * The transition table behind one of the range-backed sets in this
+     * package, or null for any other object. Tables are canonical, so two
+     * of these sets are equal exactly when their tables are, and equals()
+     * can compare them without going value by value. Anything else is
+     * left to AbstractSet.equals, so equality agrees in both directions.
+     */
+    static int[] transitionsOf(Object o) {
+        if (o instanceof IntRanges)
+            return ((IntRanges) o).transitions();
+        else if (o instanceof PersistentIntRanges)
+            return ((PersistentIntRanges) o).transitions();
+        else if (o instanceof CompressedIntRanges)
+            return ((CompressedIntRanges) o).transitions();
+        else if (o instanceof HybridIntSet)
+            return ((HybridIntSet) o).transitions();
+        else if (o instanceof FrozenIntRanges)
+            return ((FrozenIntRanges) o).toIntRanges().transitions();
+        else if (o instanceof MappedIntRanges)
+            return ((MappedIntRanges) o).toIntRanges().transitions();
+        else
+            return null;
+    }
+
+    /*
+     * Index of the first transition >= n, or is.length if there is none.
+     */
+    static int firstAtLeast(int[] is, int n) {
+        if (is.length <= LINEAR_SEARCH_LIMIT)
+            return linearFirstAtLeast(is, n);
+        else
+            return binaryFirstAtLeast(is, 0, is.length, n);
+    }
+
+    /*
+     * Index of the first transition > n, or is.length if there is none.
+     *
+     * This is also the number of transitions <= n, so n is in the set
+     * exactly when the result is odd.
+     */
+    static int firstGreaterThan(int[] is, int n) {
+        if (n == Integer.MAX_VALUE)
+            return is.length;
+        else
+            return firstAtLeast(is, n + 1);
+    }
+
+    /*
+     * firstGreaterThan for n when every transition before from is already
+     * known to be <= n, as for the previous of a run of ascending lookups.
+     * Steps forward from there in doubling strides, then binary searches
+     * the last stride, so each lookup costs the log of how far it moves
+     * rather than of the whole table.
+     */
+    static int gallopGreaterThan(int[] is, int from, int n) {
+        if (n == Integer.MAX_VALUE)
+            return is.length;
+
+        final int target = n + 1;
+        int lo = from;
+        int hi = from;
+        int stride = 1;
+        while (hi < is.length && is[hi] < target) {
+            lo = hi + 1;
+            hi = (stride < is.length - hi) ? hi + stride : is.length;
+            stride <<= 1;
+        }
+        return binaryFirstAtLeast(is, lo, hi, target);
+    }
+
+    /*
+     * Last value in the segment starting at transition i, which for the
+     * open ended segment is MAX_VALUE.
+     */
+    static int lastInSegment(int[] is, int i) {
+        assert(i % 2 == 0);
+        return (i + 1 < is.length) ? is[i + 1] - 1 : Integer.MAX_VALUE;
+    }
+
+    /*
+     * Number of values in the set, which for the full range is 2^32.
+     */
+    static long cardinality(int[] is) {
+        long cardinality = 0;
+        for (int i = 0; i < is.length; i += 2)
+            cardinality += (long) lastInSegment(is, i) - is[i] + 1;
+        return cardinality;
+    }
+
+    /*
+     * firstGreaterThan over a table held in a buffer, read in place.
+     */
+    static int firstGreaterThan(IntBuffer is, int n) {
+        final int length = is.limit();
+        if (n == Integer.MAX_VALUE || length == 0)
+            return length;
+
+        int base = 0;
+        int len = length;
+        while (len > 1) {
+            final int half = len >>> 1;
+            base = (is.get(base + half - 1) <= n) ? base + half : base;
+            len -= half;
+        }
+        return (is.get(base) <= n) ? base + 1 : base;
+    }
+
+    static int lastInSegment(IntBuffer is, int i) {
+        assert(i % 2 == 0);
+        return (i + 1 < is.limit()) ? is.get(i + 1) - 1 : Integer.MAX_VALUE;
+    }
+
+    static int linearFirstAtLeast(int[] is, int n) {
+        for (int i = 0; i < is.length; i++) {
+            if (is[i] >= n)
+                return i;
+        }
+        return is.length;
+    }
+
+    /*
+     * Searches is[from, to) for the first transition >= n.
+     */
+    static int binaryFirstAtLeast(int[] is, int from, int to, int n) {
+        if (from == to)
+            return to;
+
+        int base = from;
+        int len = to - from;
+        while (len > 1) {
+            final int half = len >>> 1;
+            base = (is[base + half - 1] < n) ? base + half : base;
+            len -= half;
+        }
+        return (is[base] < n) ? base + 1 : base;
+    }
+
+    /*
+     * The number of transitions the searches above read to find i in a
+     * table of length transitions, worked out from where they ended so
+     * that metrics cost nothing until they are reported.
+     */
+    static int firstAtLeastProbes(int length, int i) {
+        if (length <= LINEAR_SEARCH_LIMIT)
+            return Math.min(i + 1, length);
+        else
+            return binaryProbes(length);
+    }
+
+    static int firstGreaterThanProbes(int length, int n, int i) {
+        return (n == Integer.MAX_VALUE) ? 0 : firstAtLeastProbes(length, i);
+    }
+
+    // is[hi] < n + 1 exactly when hi < i, so the gallop can be replayed
+    static int gallopGreaterThanProbes(int length, int from, int n, int i) {
+        if (n == Integer.MAX_VALUE)
+            return 0;
+
+        int probes = 0;
+        int lo = from;
+        int hi = from;
+        int stride = 1;
+        while (hi < length) {
+            probes++;
+            if (hi >= i)
+                break;
+            lo = hi + 1;
+            hi = (stride < length - hi) ? hi + stride : length;
+            stride <<= 1;
+        }
+        return probes + binaryProbes(hi - lo);
+    }
+
+    // halving len down to 1 takes ceil(log2(len)) reads, then one more
+    private static int binaryProbes(int len) {
+        return (len == 0) ? 0 : 33 - Integer.numberOfLeadingZeros(len - 1);
+    }
+
+    /*
+     * Sets every value in [first, last] to on (present) or off, returning
+     * the new table, or is itself when nothing changes.
+     *
+     * Transitions inside the range are dropped and at most two are added,
+     * one at first and one just after last, and only where the state
+     * actually flips. A flip just after last that lands on an existing
+     * transition cancels it, which is how adjacent segments merge. When
+     * last is MAX_VALUE nothing follows the range, so the table ends
+     * open-ended if on.
+     */
+    static int[] splice(int[] is, int first, int last, boolean on) {
+        assert(first <= last);
+
+        final int i = firstAtLeast(is, first);
+        final boolean startFlip = ((i & 1) == 1) != on;
+        int j;
+        boolean endFlip;
+        if (last == Integer.MAX_VALUE) {
+            j = is.length;
+            endFlip = false;
+        } else {
+            j = firstAtLeast(is, last + 1);
+            // the state after the range must stay as it was
+            endFlip = ((i + (startFlip ? 1 : 0) + j) & 1) == 1;
+            if (endFlip && j < is.length && is[j] == last + 1) {
+                j++;
+                endFlip = false;
+            }
+        }
+
+        final int middle = (startFlip ? 1 : 0) + (endFlip ? 1 : 0);
+        if (middle == j - i) {
+            boolean same = true;
+            if (startFlip)
+                same = is[i] == first;
+            if (endFlip)
+                same = same && is[j - 1] == last + 1;
+            if (same)
+                return is;
+        }
+
+        final int[] newTransitions = new int[i + middle + is.length - j];
+        System.arraycopy(is, 0, newTransitions, 0, i);
+        int k = i;
+        if (startFlip)
+            newTransitions[k++] = first;
+        if (endFlip)
+            newTransitions[k++] = last + 1;
+        System.arraycopy(is, j, newTransitions, k, is.length - j);
+        return newTransitions;
+    }
+
+    /*
+     * Builds a table from values[0, count), which must be sorted but may
+     * hold duplicates. Runs of consecutive values become one segment.
+     */
+    static int[] fromSorted(int[] values, int count) {
+        if (count == 0)
+            return new int[0];
+
+        assert(isSorted(values, count));
+        int segments = 1;
+        for (int i = 1; i < count; i++) {
+            if ((long) values[i] - values[i - 1] > 1)
+                segments++;
+        }
+
+        final boolean openEnded = values[count - 1] == Integer.MAX_VALUE;
+        final int[] newTransitions = new int[2 * segments - (openEnded ? 1 : 0)];
+        int k = 0;
+        newTransitions[k++] = values[0];
+        for (int i = 1; i < count; i++) {
+            if ((long) values[i] - values[i - 1] > 1) {
+                newTransitions[k++] = values[i - 1] + 1;
+                newTransitions[k++] = values[i];
+            }
+        }
+        if (!openEnded)
+            newTransitions[k++] = values[count - 1] + 1;
+        return newTransitions;
+    }
+
+    static boolean isSorted(int[] values, int count) {
+        for (int i = 1; i < count; i++) {
+            if (values[i - 1] > values[i])
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Union of all the tables, merged pairwise as a balanced tree so each
+     * transition takes part in log2(tables.length) merges.
+     */
+    static int[] unionAll(int[][] tables) {
+        if (tables.length == 0)
+            return new int[0];
+        else
+            return unionAll(tables, 0, tables.length);
+    }
+
+    private static int[] unionAll(int[][] tables, int from, int to) {
+        if (to - from == 1)
+            return tables[from];
+
+        final int mid = (from + to) >>> 1;
+        return merge(unionAll(tables, from, mid), unionAll(tables, mid, to), UNION);
+    }
+
+    /*
+     * Combines two tables in one linear pass, returning the new table, or a
+     * itself when the result is the same set as a.
+     */
+    static int[] merge(int[] a, int[] b, int op) {
+        final int counted = merge(a, b, op, null);
+        if (counted >= 0)
+            return a;
+
+        final int[] newTransitions = new int[-counted - 1];
+        merge(a, b, op, newTransitions);
+        return newTransitions;
+    }
+
+    /*
+     * Number of transitions in the combined table.
+     */
+    static int mergedLength(int[] a, int[] b, int op) {
+        final int counted = merge(a, b, op, null);
+        return (counted >= 0) ? counted : -counted - 1;
+    }
+
+    /*
+     * Walks both tables in order, emitting a transition wherever the
+     * combined state flips. Without an output array this only counts, and
+     * returns the count if the result matches a, or -count - 1 if not.
+     */
+    private static int merge(int[] a, int[] b, int op, int[] out) {
+        assert((op & 1) == 0);
+
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        boolean inA = false;
+        boolean inB = false;
+        boolean in = false;
+        boolean same = true;
+        while (i < a.length || j < b.length) {
+            final int x;
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                x = a[i++];
+                inA = !inA;
+            } else if (i == a.length || b[j] < a[i]) {
+                x = b[j++];
+                inB = !inB;
+            } else {
+                x = a[i++];
+                j++;
+                inA = !inA;
+                inB = !inB;
+            }
+
+            final boolean now = ((op >>> ((inA ? 2 : 0) | (inB ? 1 : 0))) & 1) != 0;
+            if (now != in) {
+                if (out != null)
+                    out[k] = x;
+                else if (same)
+                    same = k < a.length && a[k] == x;
+                k++;
+                in = now;
+            }
+        }
+
+        return (same && k == a.length) ? k : -k - 1;
+    }
+}
@@ -0,0 +1,10 @@
+package com.sunsetutopia.utils;
+
+/*
+ * Receives a range of longs as its first and last values, both inclusive,
+ * so a range running up to MAX_VALUE can still be expressed.
+ */
+@FunctionalInterface
+public interface LongBinaryConsumer {
+    void accept(long first, long last);
+}
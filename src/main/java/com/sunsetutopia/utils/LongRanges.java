@@ -0,0 +1,530 @@
+package com.sunsetutopia.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Stores a long set using ranges, as IntRanges does for ints.
+ *
+ * The transition table is a sorted long[], a value is in the set when an
+ * odd number of transitions are <= it, and an odd length table runs on to
+ * Long.MAX_VALUE. Updates copy the table and publish it by CAS, and the
+ * table algorithms are in LongTransitions, mirroring IntTransitions.
+ *
+ * A set can hold up to 2^64 values, more than a long can count, so
+ * cardinality() stops at Long.MAX_VALUE and exactCardinality() gives the
+ * true figure.
+ *
+ * This is deliberately a subset of IntRanges: the set operations,
+ * iteration and streams, but no listeners or deltas, metrics, versions,
+ * rank/select or navigation, SubSet views, Builder, serialization or
+ * parse(). Each of those would be another copy of the int code to keep
+ * in step by hand, so they should come over one at a time, when a caller
+ * needs them.
+ */
+public final class LongRanges extends AbstractSet<Long> implements Cloneable {
+    private static final Snapshot EMPTY = new Snapshot(new long[0], 0);
+
+    private final AtomicReference<Snapshot> _snapshot;
+
+    public LongRanges() {
+        _snapshot = new AtomicReference<Snapshot>();
+        _snapshot.set(EMPTY);
+    }
+
+    /*
+     * A set holding the same values as ranges.
+     */
+    public LongRanges(IntRanges ranges) {
+        this();
+        final int[] transitions = ranges.transitions();
+        final long[] widened = new long[transitions.length + (transitions.length & 1)];
+        for (int i = 0; i < transitions.length; i++)
+            widened[i] = transitions[i];
+        // the open ended int segment stops at Integer.MAX_VALUE here
+        if ((transitions.length & 1) == 1)
+            widened[transitions.length] = Integer.MAX_VALUE + 1L;
+        _snapshot.set(new Snapshot(widened, LongTransitions.cardinality(widened)));
+    }
+
+    static final class Snapshot {
+        final long[] transitions;
+        final long cardinality;
+
+        Snapshot(long[] transitions, long cardinality) {
+            this.transitions = transitions;
+            this.cardinality = cardinality;
+        }
+    }
+
+    Snapshot snapshot() {
+        return _snapshot.get();
+    }
+
+    long[] transitions() {
+        return snapshot().transitions;
+    }
+
+    private boolean updateTransitions(final Snapshot old, final long[] newTransitions, final long cardinality) {
+        return _snapshot.compareAndSet(old, new Snapshot(newTransitions, cardinality));
+    }
+
+    public boolean contains(long n) {
+        return (LongTransitions.firstGreaterThan(transitions(), n) & 1) == 1;
+    }
+
+    public boolean add(long n) {
+        return splice(n, n, true);
+    }
+
+    public boolean remove(long n) {
+        return splice(n, n, false);
+    }
+
+    /*
+     * Adds every value in [fromInclusive, toExclusive); add(MAX_VALUE)
+     * for MAX_VALUE itself.
+     */
+    public boolean addRange(long fromInclusive, long toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, true);
+    }
+
+    public boolean removeRange(long fromInclusive, long toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return splice(fromInclusive, toExclusive - 1, false);
+    }
+
+    private static void checkRange(long fromInclusive, long toExclusive) {
+        if (fromInclusive > toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") > toExclusive(" + toExclusive + ")");
+    }
+
+    private boolean splice(long first, long last, boolean on) {
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            final long[] transitions = snapshot.transitions;
+            final long[] newTransitions = LongTransitions.splice(transitions, first, last, on);
+
+            if (transitions == newTransitions) {
+                return false;
+            } else {
+                // a single value moves the count by one, as in IntRanges
+                final long cardinality = (first == last)
+                        ? step(snapshot.cardinality, on, newTransitions)
+                        : LongTransitions.cardinality(newTransitions);
+                if (updateTransitions(snapshot, newTransitions, cardinality))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    /*
+     * The count after one value is added or removed. A saturated count
+     * stays saturated on an add, but has to be recounted on a remove.
+     */
+    private static long step(long cardinality, boolean on, long[] newTransitions) {
+        if (cardinality < Long.MAX_VALUE)
+            return on ? cardinality + 1 : cardinality - 1;
+        else
+            return on ? Long.MAX_VALUE : LongTransitions.cardinality(newTransitions);
+    }
+
+    boolean merge(long[] other, int op) {
+        while (true) {
+            final Snapshot snapshot = snapshot();
+            final long[] transitions = snapshot.transitions;
+            final long[] newTransitions = LongTransitions.merge(transitions, other, op);
+
+            if (transitions == newTransitions) {
+                return false;
+            } else {
+                if (updateTransitions(snapshot, newTransitions, LongTransitions.cardinality(newTransitions)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    // basic methods
+
+    public LongRanges clone() {
+        LongRanges r = new LongRanges();
+        r._snapshot.set(snapshot());
+        return r;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (o instanceof LongRanges)
+            return Arrays.equals(transitions(), ((LongRanges) o).transitions());
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            appendTo(sb);
+        } catch (IOException e) {
+            // not thrown by a StringBuilder
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Writes the set in the notation IntRanges uses, such as {1,[5-900]}.
+     */
+    public <A extends Appendable> A appendTo(A out) throws IOException {
+        final long[] transitions = transitions();
+
+        out.append('{');
+        for (int i = 0; i < transitions.length; i += 2) {
+            final long first = transitions[i];
+            final long last = LongTransitions.lastInSegment(transitions, i);
+
+            if (i != 0)
+                out.append(',');
+            if (first == last)
+                out.append(Long.toString(first));
+            else
+                out.append('[').append(Long.toString(first)).append('-').append(Long.toString(last)).append(']');
+        }
+        out.append('}');
+        return out;
+    }
+
+    // Set methods
+
+    /*
+     * Number of values, or Long.MAX_VALUE if there are at least that many.
+     */
+    public long cardinality() {
+        return snapshot().cardinality;
+    }
+
+    public BigInteger exactCardinality() {
+        final long[] transitions = transitions();
+        BigInteger cardinality = BigInteger.ZERO;
+        for (int i = 0; i < transitions.length; i += 2) {
+            final long span = LongTransitions.lastInSegment(transitions, i) - transitions[i];
+            cardinality = cardinality.add(unsigned(span)).add(BigInteger.ONE);
+        }
+        return cardinality;
+    }
+
+    private static BigInteger unsigned(long n) {
+        final BigInteger b = BigInteger.valueOf(n);
+        return (n < 0) ? b.add(BigInteger.ONE.shiftLeft(64)) : b;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return transitions().length == 0;
+    }
+
+    public void clear() {
+        _snapshot.set(new Snapshot(EMPTY.transitions, 0));
+    }
+
+    public int rangeCount() {
+        return (transitions().length + 1) / 2;
+    }
+
+    public boolean contains(Object o) {
+        return contains((long)((Long) o));
+    }
+
+    public boolean add(Long o) {
+        return add((long) o);
+    }
+
+    public boolean remove(Object o) {
+        return remove((long)((Long) o));
+    }
+
+    public boolean containsAll(Collection<?> c) {
+        if (c instanceof LongRanges) {
+            final long[] other = ((LongRanges) c).transitions();
+            return LongTransitions.mergedLength(other, transitions(), LongTransitions.DIFFERENCE) == 0;
+        } else {
+            return super.containsAll(c);
+        }
+    }
+
+    public boolean addAll(Collection<? extends Long> c) {
+        if (c instanceof LongRanges)
+            return merge(((LongRanges) c).transitions(), LongTransitions.UNION);
+        else
+            return super.addAll(c);
+    }
+
+    public boolean retainAll(Collection<?> c) {
+        if (c instanceof LongRanges)
+            return merge(((LongRanges) c).transitions(), LongTransitions.INTERSECTION);
+        else
+            return super.retainAll(c);
+    }
+
+    public boolean removeAll(Collection<?> c) {
+        if (c instanceof LongRanges)
+            return merge(((LongRanges) c).transitions(), LongTransitions.DIFFERENCE);
+        else
+            return super.removeAll(c);
+    }
+
+    // iteration
+
+    public Iterator<Long> iterator() {
+        return longIterator();
+    }
+
+    public PrimitiveIterator.OfLong longIterator() {
+        return new LongRangeIterator(transitions(), this);
+    }
+
+    public void forEachLong(LongConsumer action) {
+        final long[] transitions = transitions();
+
+        for (int i = 0; i < transitions.length; i += 2) {
+            final long last = LongTransitions.lastInSegment(transitions, i);
+            for (long n = transitions[i]; n < last; n++)
+                action.accept(n);
+            action.accept(last);
+        }
+
+        if (transitions() != transitions)
+            throw new ConcurrentModificationException();
+    }
+
+    public void forEachRange(LongBinaryConsumer action) {
+        final long[] transitions = transitions();
+
+        for (int i = 0; i < transitions.length; i += 2)
+            action.accept(transitions[i], LongTransitions.lastInSegment(transitions, i));
+    }
+
+    public Spliterator.OfLong spliterator() {
+        final Snapshot snapshot = snapshot();
+        return new LongRangeSpliterator(snapshot.transitions, snapshot.cardinality);
+    }
+
+    public LongStream longStream() {
+        return StreamSupport.longStream(spliterator(), false);
+    }
+
+    /*
+     * IntRanges.IntRangeSpliterator for longs: splits a snapshot at
+     * segment boundaries, and a lone segment in half arithmetically.
+     *
+     * A long set can hold more values than a long counts, so a saturated
+     * remaining count is only an estimate. Such a spliterator is not
+     * SIZED, and recounts each side when it splits until the halves are
+     * small enough to count exactly.
+     */
+    static final class LongRangeSpliterator implements Spliterator.OfLong {
+        private final long[] transitions;
+        private int segment;
+        private long next;
+        private final int fenceSegment;
+        private final long fenceLast;
+        private long remaining;
+
+        LongRangeSpliterator(long[] transitions, long cardinality) {
+            this.transitions = transitions;
+            this.segment = 0;
+            this.remaining = cardinality;
+            if (transitions.length > 0) {
+                this.next = transitions[0];
+                this.fenceSegment = (transitions.length - 1) & ~1;
+                this.fenceLast = LongTransitions.lastInSegment(transitions, fenceSegment);
+            } else {
+                // nothing to cover, segment is already past the fence
+                this.fenceSegment = -2;
+                this.fenceLast = 0;
+            }
+        }
+
+        private LongRangeSpliterator(long[] transitions, int segment, long next, int fenceSegment, long fenceLast) {
+            this.transitions = transitions;
+            this.segment = segment;
+            this.next = next;
+            this.fenceSegment = fenceSegment;
+            this.fenceLast = fenceLast;
+            this.remaining = count();
+        }
+
+        private long lastIn(int seg) {
+            return (seg == fenceSegment) ? fenceLast : LongTransitions.lastInSegment(transitions, seg);
+        }
+
+        // values left, or Long.MAX_VALUE if at least that many
+        private long count() {
+            long count = 0;
+            for (int seg = segment; seg <= fenceSegment; seg += 2) {
+                final long span = lastIn(seg) - ((seg == segment) ? next : transitions[seg]);
+                if (span < 0 || span >= Long.MAX_VALUE - count)
+                    return Long.MAX_VALUE;
+                count += span + 1;
+            }
+            return count;
+        }
+
+        private boolean exact() {
+            return remaining < Long.MAX_VALUE;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            if (segment > fenceSegment)
+                return false;
+
+            final long n = next;
+            if (n != lastIn(segment)) {
+                next = n + 1;
+            } else {
+                segment += 2;
+                if (segment <= fenceSegment)
+                    next = transitions[segment];
+            }
+            if (exact())
+                remaining--;
+            action.accept(n);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            if (segment > fenceSegment)
+                return;
+
+            final int from = segment;
+            final long first = next;
+            segment = fenceSegment + 2;
+            remaining = 0;
+
+            for (int seg = from; seg <= fenceSegment; seg += 2) {
+                final long last = lastIn(seg);
+                for (long n = (seg == from) ? first : transitions[seg]; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+            }
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            if (segment > fenceSegment || (segment == fenceSegment && next == fenceLast))
+                return null;
+
+            final LongRangeSpliterator prefix;
+            if (segment < fenceSegment) {
+                // hand over the first half of the segments
+                final int leftSegments = ((fenceSegment - segment) / 2 + 1) / 2;
+                final int leftFence = segment + 2 * (leftSegments - 1);
+                final long leftLast = LongTransitions.lastInSegment(transitions, leftFence);
+
+                prefix = new LongRangeSpliterator(transitions, segment, next, leftFence, leftLast);
+                segment = leftFence + 2;
+                next = transitions[segment];
+            } else {
+                // a single segment, split it down the middle
+                final long middle = next + ((fenceLast - next) >>> 1);
+                prefix = new LongRangeSpliterator(transitions, segment, next, segment, middle);
+                next = middle + 1;
+            }
+            remaining = exact() ? remaining - prefix.remaining : count();
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            final int characteristics = ORDERED | SORTED | DISTINCT | IMMUTABLE | NONNULL;
+            return exact() ? characteristics | SIZED | SUBSIZED : characteristics;
+        }
+
+        @Override
+        public Comparator<? super Long> getComparator() {
+            // natural ordering
+            return null;
+        }
+    }
+
+    private static final class LongRangeIterator implements PrimitiveIterator.OfLong {
+        private final long[] transitions;
+        private final LongRanges parent;
+        private int segment;
+        private long next;
+        private long last;
+
+        LongRangeIterator(long[] transitions, LongRanges parent) {
+            this.transitions = transitions;
+            this.parent = parent;
+            this.segment = 0;
+            if (transitions.length > 0) {
+                this.next = transitions[0];
+                this.last = LongTransitions.lastInSegment(transitions, 0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return segment < transitions.length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final long n = next;
+            if (n != last) {
+                next = n + 1;
+            } else {
+                // end of this segment, checked unless walking a fixed snapshot
+                if (parent != null && parent.transitions() != transitions)
+                    throw new ConcurrentModificationException();
+
+                segment += 2;
+                if (segment < transitions.length) {
+                    next = transitions[segment];
+                    last = LongTransitions.lastInSegment(transitions, segment);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.sunsetutopia.utils;
+
+/*
+ * IntTransitions for tables of longs, as used by LongRanges.
+ *
+ * Java generics would box every value, so this is a line for line copy
+ * with the types changed, and any change to one should be made to both.
+ * LongRangesTheories checks the two agree over the int range.
+ */
+final class LongTransitions {
+    static final int LINEAR_SEARCH_LIMIT = IntTransitions.LINEAR_SEARCH_LIMIT;
+
+    static final int UNION = IntTransitions.UNION;
+    static final int INTERSECTION = IntTransitions.INTERSECTION;
+    static final int DIFFERENCE = IntTransitions.DIFFERENCE;
+
+    private LongTransitions() {
+    }
+
+    /*
+     * Index of the first transition >= n, or ls.length if there is none.
+     */
+    static int firstAtLeast(long[] ls, long n) {
+        if (ls.length <= LINEAR_SEARCH_LIMIT)
+            return linearFirstAtLeast(ls, n);
+        else
+            return binaryFirstAtLeast(ls, 0, ls.length, n);
+    }
+
+    /*
+     * Index of the first transition > n, which is also the number of
+     * transitions <= n.
+     */
+    static int firstGreaterThan(long[] ls, long n) {
+        if (n == Long.MAX_VALUE)
+            return ls.length;
+        else
+            return firstAtLeast(ls, n + 1);
+    }
+
+    static long lastInSegment(long[] ls, int i) {
+        assert(i % 2 == 0);
+        return (i + 1 < ls.length) ? ls[i + 1] - 1 : Long.MAX_VALUE;
+    }
+
+    /*
+     * Number of values in the set, or Long.MAX_VALUE if there are more.
+     */
+    static long cardinality(long[] ls) {
+        long cardinality = 0;
+        for (int i = 0; i < ls.length; i += 2) {
+            // the segment has span + 1 values, with span read as unsigned
+            final long span = lastInSegment(ls, i) - ls[i];
+            if (span < 0 || span >= Long.MAX_VALUE - cardinality)
+                return Long.MAX_VALUE;
+            cardinality += span + 1;
+        }
+        return cardinality;
+    }
+
+    static int linearFirstAtLeast(long[] ls, long n) {
+        for (int i = 0; i < ls.length; i++) {
+            if (ls[i] >= n)
+                return i;
+        }
+        return ls.length;
+    }
+
+    static int binaryFirstAtLeast(long[] ls, int from, int to, long n) {
+        if (from == to)
+            return to;
+
+        int base = from;
+        int len = to - from;
+        while (len > 1) {
+            final int half = len >>> 1;
+            base = (ls[base + half - 1] < n) ? base + half : base;
+            len -= half;
+        }
+        return (ls[base] < n) ? base + 1 : base;
+    }
+
+    /*
+     * Sets every value in [first, last] to on or off, returning the new
+     * table, or ls itself when nothing changes.
+     */
+    static long[] splice(long[] ls, long first, long last, boolean on) {
+        assert(first <= last);
+
+        final int i = firstAtLeast(ls, first);
+        final boolean startFlip = ((i & 1) == 1) != on;
+        int j;
+        boolean endFlip;
+        if (last == Long.MAX_VALUE) {
+            j = ls.length;
+            endFlip = false;
+        } else {
+            j = firstAtLeast(ls, last + 1);
+            // the state after the range must stay as it was
+            endFlip = ((i + (startFlip ? 1 : 0) + j) & 1) == 1;
+            if (endFlip && j < ls.length && ls[j] == last + 1) {
+                j++;
+                endFlip = false;
+            }
+        }
+
+        final int middle = (startFlip ? 1 : 0) + (endFlip ? 1 : 0);
+        if (middle == j - i) {
+            boolean same = true;
+            if (startFlip)
+                same = ls[i] == first;
+            if (endFlip)
+                same = same && ls[j - 1] == last + 1;
+            if (same)
+                return ls;
+        }
+
+        final long[] newTransitions = new long[i + middle + ls.length - j];
+        System.arraycopy(ls, 0, newTransitions, 0, i);
+        int k = i;
+        if (startFlip)
+            newTransitions[k++] = first;
+        if (endFlip)
+            newTransitions[k++] = last + 1;
+        System.arraycopy(ls, j, newTransitions, k, ls.length - j);
+        return newTransitions;
+    }
+
+    static long[] merge(long[] a, long[] b, int op) {
+        final int counted = merge(a, b, op, null);
+        if (counted >= 0)
+            return a;
+
+        final long[] newTransitions = new long[-counted - 1];
+        merge(a, b, op, newTransitions);
+        return newTransitions;
+    }
+
+    static int mergedLength(long[] a, long[] b, int op) {
+        final int counted = merge(a, b, op, null);
+        return (counted >= 0) ? counted : -counted - 1;
+    }
+
+    private static int merge(long[] a, long[] b, int op, long[] out) {
+        assert((op & 1) == 0);
+
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        boolean inA = false;
+        boolean inB = false;
+        boolean in = false;
+        boolean same = true;
+        while (i < a.length || j < b.length) {
+            final long x;
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                x = a[i++];
+                inA = !inA;
+            } else if (i == a.length || b[j] < a[i]) {
+                x = b[j++];
+                inB = !inB;
+            } else {
+                x = a[i++];
+                j++;
+                inA = !inA;
+                inB = !inB;
+            }
+
+            final boolean now = ((op >>> ((inA ? 2 : 0) | (inB ? 1 : 0))) & 1) != 0;
+            if (now != in) {
+                if (out != null)
+                    out[k] = x;
+                else if (same)
+                    same = k < a.length && a[k] == x;
+                k++;
+                in = now;
+            }
+        }
+
+        return (same && k == a.length) ? k : -k - 1;
+    }
+}
@@ -0,0 +1,148 @@
+package com.sunsetutopia.utils;
+
+import java.nio.IntBuffer;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/*
+ * A read-only int set over a transition table held in a buffer, usually a
+ * memory-mapped file or off-heap memory from IntRangesFile.
+ *
+ * Lookups and iteration read the buffer in place, so loading a large set
+ * costs a mapping rather than a copy, and pages are only touched as the
+ * searches reach them. The buffer is never written, and the set never
+ * changes; toIntRanges() gives a mutable copy.
+ */
+public final class MappedIntRanges extends AbstractSet<Integer> {
+    private final IntBuffer transitions;
+    private final long cardinality;
+
+    MappedIntRanges(IntBuffer transitions, long cardinality) {
+        this.transitions = transitions;
+        this.cardinality = cardinality;
+    }
+
+    public boolean contains(int n) {
+        return (IntTransitions.firstGreaterThan(transitions, n) & 1) == 1;
+    }
+
+    public long cardinality() {
+        return cardinality;
+    }
+
+    public int size() {
+        return (int) Math.min(cardinality, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return transitions.limit() == 0;
+    }
+
+    public int rangeCount() {
+        return (transitions.limit() + 1) / 2;
+    }
+
+    public IntRanges toIntRanges() {
+        final int[] copy = new int[transitions.limit()];
+        transitions.duplicate().get(copy);
+        return IntRanges.fromTransitions(copy);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        else if (o instanceof MappedIntRanges)
+            return transitions.equals(((MappedIntRanges) o).transitions);
+
+        final int[] other = IntTransitions.transitionsOf(o);
+        if (other != null)
+            return transitions.equals(IntBuffer.wrap(other));
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        return toIntRanges().toString();
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return new MappedIterator(transitions);
+    }
+
+    public void forEachInt(IntConsumer action) {
+        intIterator().forEachRemaining(action);
+    }
+
+    public void forEachRange(IntBinaryConsumer action) {
+        for (int i = 0; i < transitions.limit(); i += 2)
+            action.accept(transitions.get(i), IntTransitions.lastInSegment(transitions, i));
+    }
+
+    private static final class MappedIterator implements PrimitiveIterator.OfInt {
+        private final IntBuffer transitions;
+        private int segment;
+        private int next;
+        private int last;
+
+        MappedIterator(IntBuffer transitions) {
+            this.transitions = transitions;
+            this.segment = 0;
+            if (transitions.limit() > 0) {
+                this.next = transitions.get(0);
+                this.last = IntTransitions.lastInSegment(transitions, 0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return segment < transitions.limit();
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final int n = next;
+            if (n != last)
+                next = n + 1;
+            else
+                nextSegment();
+            return n;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            while (hasNext()) {
+                for (int n = next; n < last; n++)
+                    action.accept(n);
+                action.accept(last);
+                nextSegment();
+            }
+        }
+
+        private void nextSegment() {
+            segment += 2;
+            if (segment < transitions.limit()) {
+                next = transitions.get(segment);
+                last = IntTransitions.lastInSegment(transitions, segment);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
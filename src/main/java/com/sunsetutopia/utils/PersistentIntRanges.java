@@ -0,0 +1,519 @@
+package com.sunsetutopia.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/*
+ * Stores an int set using ranges, like IntRanges, but keeps the
+ * transitions in a persistent B+tree rather than a single array.
+ *
+ * Adding or removing n flips the state of n alone, which is the same as
+ * toggling the transitions at n and n + 1: each one is dropped if it is
+ * there and inserted if not. A toggle copies just the path from the root
+ * to one leaf, so an update allocates O(log n) instead of copying the
+ * whole table, and untouched subtrees are shared between versions. The
+ * root is published by CAS as in IntRanges, and clone() shares it.
+ *
+ * Each node caches its key count and the alternating sum of its keys
+ * (k0 - k1 + k2 - ...), giving membership (the parity of the number of
+ * keys <= n) and the cardinality without a walk over the tree.
+ */
+public final class PersistentIntRanges extends AbstractSet<Integer> implements Cloneable {
+    private static final int MAX_KEYS = 64;
+    private static final int MAX_CHILDREN = 32;
+
+    private static final Leaf EMPTY = new Leaf(new int[0]);
+    private static final Node[] NONE = new Node[0];
+
+    private final AtomicReference<Node> _root;
+
+    public PersistentIntRanges() {
+        _root = new AtomicReference<Node>();
+        _root.set(EMPTY);
+    }
+
+    public PersistentIntRanges(IntRanges source) {
+        _root = new AtomicReference<Node>();
+        _root.set(build(source.transitions()));
+    }
+
+    private abstract static class Node {
+        final int count;
+        final long alternatingSum;
+
+        Node(int count, long alternatingSum) {
+            this.count = count;
+            this.alternatingSum = alternatingSum;
+        }
+
+        abstract int min();
+
+        abstract boolean underfull();
+    }
+
+    private static final class Leaf extends Node {
+        final int[] keys;
+
+        Leaf(int[] keys) {
+            super(keys.length, alternatingSum(keys));
+            this.keys = keys;
+        }
+
+        int min() {
+            return keys[0];
+        }
+
+        boolean underfull() {
+            return keys.length < MAX_KEYS / 4;
+        }
+
+        private static long alternatingSum(int[] keys) {
+            long sum = 0;
+            for (int i = 0; i < keys.length; i++)
+                sum += ((i & 1) == 0) ? keys[i] : -(long) keys[i];
+            return sum;
+        }
+    }
+
+    private static final class Inner extends Node {
+        final Node[] children;
+        // smallest key under each child, for routing
+        final int[] mins;
+
+        Inner(Node[] children) {
+            super(count(children), alternatingSum(children));
+            this.children = children;
+            this.mins = new int[children.length];
+            for (int i = 0; i < children.length; i++)
+                mins[i] = children[i].min();
+        }
+
+        int min() {
+            return mins[0];
+        }
+
+        boolean underfull() {
+            return children.length < MAX_CHILDREN / 4;
+        }
+
+        private static int count(Node[] children) {
+            int count = 0;
+            for (Node child: children)
+                count += child.count;
+            return count;
+        }
+
+        private static long alternatingSum(Node[] children) {
+            // a child's sum changes sign when an odd number of keys precede it
+            long sum = 0;
+            int before = 0;
+            for (Node child: children) {
+                sum += ((before & 1) == 0) ? child.alternatingSum : -child.alternatingSum;
+                before += child.count;
+            }
+            return sum;
+        }
+    }
+
+    private Node root() {
+        return _root.get();
+    }
+
+    // lookups
+
+    // number of keys <= n
+    private static int rank(Node node, int n) {
+        int rank = 0;
+        while (node instanceof Inner) {
+            final Inner inner = (Inner) node;
+            final int c = IntTransitions.firstGreaterThan(inner.mins, n) - 1;
+            if (c < 0)
+                return rank;
+            for (int i = 0; i < c; i++)
+                rank += inner.children[i].count;
+            node = inner.children[c];
+        }
+        return rank + IntTransitions.firstGreaterThan(((Leaf) node).keys, n);
+    }
+
+    private static boolean contains(Node root, int n) {
+        return (rank(root, n) & 1) == 1;
+    }
+
+    // updates
+
+    private static Node toggle(Node root, int key) {
+        final Node[] replacement = toggleIn(root, key);
+        if (replacement.length == 0)
+            return EMPTY;
+
+        Node newRoot = (replacement.length == 1) ? replacement[0] : new Inner(replacement);
+        // a root with a single child is dropped, shrinking the tree
+        while (newRoot instanceof Inner && ((Inner) newRoot).children.length == 1)
+            newRoot = ((Inner) newRoot).children[0];
+        return newRoot;
+    }
+
+    /*
+     * Toggles key under node, returning the nodes that replace it: none if
+     * it emptied, or two if it split.
+     */
+    private static Node[] toggleIn(Node node, int key) {
+        if (node instanceof Leaf) {
+            final int[] keys = ((Leaf) node).keys;
+            final int i = Arrays.binarySearch(keys, key);
+            final int[] newKeys;
+            if (i >= 0) {
+                newKeys = new int[keys.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, i);
+                System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+            } else {
+                final int at = -i - 1;
+                newKeys = new int[keys.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, at);
+                newKeys[at] = key;
+                System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+            }
+            return leaves(newKeys);
+        } else {
+            final Inner inner = (Inner) node;
+            final int c = Math.max(0, IntTransitions.firstGreaterThan(inner.mins, key) - 1);
+
+            Node[] replacement = toggleIn(inner.children[c], key);
+            int from = c;
+            int to = c + 1;
+            if (replacement.length == 1 && replacement[0].underfull() && inner.children.length > 1) {
+                // top up from a neighbour
+                if (c > 0) {
+                    from = c - 1;
+                    replacement = join(inner.children[c - 1], replacement[0]);
+                } else {
+                    to = c + 2;
+                    replacement = join(replacement[0], inner.children[c + 1]);
+                }
+            }
+
+            final Node[] children = new Node[inner.children.length - (to - from) + replacement.length];
+            System.arraycopy(inner.children, 0, children, 0, from);
+            System.arraycopy(replacement, 0, children, from, replacement.length);
+            System.arraycopy(inner.children, to, children, from + replacement.length, inner.children.length - to);
+            return inners(children);
+        }
+    }
+
+    private static Node[] join(Node a, Node b) {
+        if (a instanceof Leaf) {
+            final int[] keys = Arrays.copyOf(((Leaf) a).keys, a.count + b.count);
+            System.arraycopy(((Leaf) b).keys, 0, keys, a.count, b.count);
+            return leaves(keys);
+        } else {
+            final Node[] as = ((Inner) a).children;
+            final Node[] bs = ((Inner) b).children;
+            final Node[] children = Arrays.copyOf(as, as.length + bs.length);
+            System.arraycopy(bs, 0, children, as.length, bs.length);
+            return inners(children);
+        }
+    }
+
+    private static Node[] leaves(int[] keys) {
+        if (keys.length == 0) {
+            return NONE;
+        } else if (keys.length <= MAX_KEYS) {
+            return new Node[] {new Leaf(keys)};
+        } else {
+            final int half = keys.length / 2;
+            return new Node[] {
+                new Leaf(Arrays.copyOfRange(keys, 0, half)),
+                new Leaf(Arrays.copyOfRange(keys, half, keys.length))};
+        }
+    }
+
+    private static Node[] inners(Node[] children) {
+        if (children.length == 0) {
+            return NONE;
+        } else if (children.length <= MAX_CHILDREN) {
+            return new Node[] {new Inner(children)};
+        } else {
+            final int half = children.length / 2;
+            return new Node[] {
+                new Inner(Arrays.copyOfRange(children, 0, half)),
+                new Inner(Arrays.copyOfRange(children, half, children.length))};
+        }
+    }
+
+    /*
+     * Bulk loads a sorted table bottom up, filling nodes three quarters
+     * full so that later inserts don't split straight away.
+     */
+    private static Node build(int[] keys) {
+        if (keys.length == 0)
+            return EMPTY;
+
+        Node[] level = new Node[chunks(keys.length, MAX_KEYS * 3 / 4)];
+        for (int i = 0; i < level.length; i++) {
+            final int from = (int) ((long) i * keys.length / level.length);
+            final int to = (int) ((long) (i + 1) * keys.length / level.length);
+            level[i] = new Leaf(Arrays.copyOfRange(keys, from, to));
+        }
+
+        while (level.length > 1) {
+            final Node[] up = new Node[chunks(level.length, MAX_CHILDREN * 3 / 4)];
+            for (int i = 0; i < up.length; i++) {
+                final int from = (int) ((long) i * level.length / up.length);
+                final int to = (int) ((long) (i + 1) * level.length / up.length);
+                up[i] = new Inner(Arrays.copyOfRange(level, from, to));
+            }
+            level = up;
+        }
+        return level[0];
+    }
+
+    private static int chunks(int n, int per) {
+        return (n + per - 1) / per;
+    }
+
+    public boolean contains(int n) {
+        return contains(root(), n);
+    }
+
+    public boolean add(int n) {
+        while (true) {
+            final Node root = root();
+            if (contains(root, n))
+                return false;
+
+            if (_root.compareAndSet(root, toggleValue(root, n)))
+                return true;
+            // update failed, try again
+        }
+    }
+
+    public boolean remove(int n) {
+        while (true) {
+            final Node root = root();
+            if (!contains(root, n))
+                return false;
+
+            if (_root.compareAndSet(root, toggleValue(root, n)))
+                return true;
+            // update failed, try again
+        }
+    }
+
+    // flips n alone, by toggling the transitions either side of it
+    private static Node toggleValue(Node root, int n) {
+        final Node toggled = toggle(root, n);
+        if (n == Integer.MAX_VALUE)
+            return toggled;
+        else
+            return toggle(toggled, n + 1);
+    }
+
+    /*
+     * Exact number of values, which can exceed Integer.MAX_VALUE.
+     */
+    public long cardinality() {
+        final Node root = root();
+        // pairs of keys sum to -(start - end), an odd key out runs to 2^31
+        return (((root.count & 1) == 1) ? 1L << 31 : 0) - root.alternatingSum;
+    }
+
+    // depth of the tree, 0 while the root is a leaf
+    int height() {
+        int height = 0;
+        for (Node node = root(); node instanceof Inner; node = ((Inner) node).children[0])
+            height++;
+        return height;
+    }
+
+    int[] transitions() {
+        final Node root = root();
+        final int[] keys = new int[root.count];
+        final KeyCursor cursor = new KeyCursor(root);
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = cursor.next();
+        return keys;
+    }
+
+    public IntRanges toIntRanges() {
+        return IntRanges.fromTransitions(transitions());
+    }
+
+    // basic methods
+
+    public PersistentIntRanges clone() {
+        PersistentIntRanges r = new PersistentIntRanges();
+        r._root.set(root());
+        return r;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+
+        final int[] other = IntTransitions.transitionsOf(o);
+        if (other != null)
+            return Arrays.equals(transitions(), other);
+        else
+            return super.equals(o);
+    }
+
+    public String toString() {
+        return toIntRanges().toString();
+    }
+
+    // Set methods
+
+    public int size() {
+        return (int) Math.min(cardinality(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return root().count == 0;
+    }
+
+    public void clear() {
+        _root.set(EMPTY);
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public boolean add(Integer o) {
+        return add((int) o);
+    }
+
+    public boolean remove(Object o) {
+        return remove((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    /*
+     * Iterates the version of the set current when called. Later updates
+     * build new trees, so they are never seen and never interfere.
+     */
+    public PrimitiveIterator.OfInt intIterator() {
+        return new ValueIterator(new KeyCursor(root()));
+    }
+
+    public void forEachInt(IntConsumer action) {
+        forEachRange((first, last) -> {
+            for (int n = first; n < last; n++)
+                action.accept(n);
+            action.accept(last);
+        });
+    }
+
+    public void forEachRange(IntBinaryConsumer action) {
+        final KeyCursor cursor = new KeyCursor(root());
+        while (cursor.hasNext()) {
+            final int first = cursor.next();
+            final int last = cursor.hasNext() ? cursor.next() - 1 : Integer.MAX_VALUE;
+            action.accept(first, last);
+        }
+    }
+
+    /*
+     * Walks the keys of a tree in order, keeping the path to the current
+     * leaf.
+     */
+    private static final class KeyCursor {
+        private final Node[] path;
+        private final int[] index;
+
+        KeyCursor(Node root) {
+            int height = 0;
+            for (Node node = root; node instanceof Inner; node = ((Inner) node).children[0])
+                height++;
+
+            path = new Node[height + 1];
+            index = new int[height + 1];
+            path[0] = root;
+            descend(0);
+        }
+
+        // leftmost path below path[level]
+        private void descend(int level) {
+            for (int l = level; l < path.length - 1; l++) {
+                path[l + 1] = ((Inner) path[l]).children[index[l]];
+                index[l + 1] = 0;
+            }
+        }
+
+        boolean hasNext() {
+            final int leaf = path.length - 1;
+            return index[leaf] < path[leaf].count;
+        }
+
+        int next() {
+            final int leaf = path.length - 1;
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final int key = ((Leaf) path[leaf]).keys[index[leaf]++];
+            if (index[leaf] == path[leaf].count) {
+                // find the nearest ancestor with a later child
+                for (int l = leaf - 1; l >= 0; l--) {
+                    if (index[l] + 1 < ((Inner) path[l]).children.length) {
+                        index[l]++;
+                        descend(l);
+                        break;
+                    }
+                }
+            }
+            return key;
+        }
+    }
+
+    private static final class ValueIterator implements PrimitiveIterator.OfInt {
+        private final KeyCursor cursor;
+        private boolean inSegment;
+        private int next;
+        private int last;
+
+        ValueIterator(KeyCursor cursor) {
+            this.cursor = cursor;
+            nextSegment();
+        }
+
+        private void nextSegment() {
+            inSegment = cursor.hasNext();
+            if (inSegment) {
+                next = cursor.next();
+                last = cursor.hasNext() ? cursor.next() - 1 : Integer.MAX_VALUE;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return inSegment;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!inSegment)
+                throw new NoSuchElementException();
+
+            final int n = next;
+            if (n != last)
+                next = n + 1;
+            else
+                nextSegment();
+            return n;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
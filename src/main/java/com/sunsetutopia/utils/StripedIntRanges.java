@@ -0,0 +1,401 @@
+package com.sunsetutopia.utils;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/*
+ * An int set for many concurrent writers.
+ *
+ * The int range is cut into blocks of 2^blockBits values, which are dealt
+ * round-robin to 2^stripeBits stripes. Each stripe is a transition table
+ * replaced by its own CAS, as in IntRanges, so writers to different
+ * stripes never contend, and an update only copies its own stripe's
+ * table. Dealing blocks round-robin spreads even a tight cluster of ids
+ * over every stripe. A run longer than a block is stored as one segment
+ * per block, and snapshot() joins them back up.
+ *
+ * That makes long runs expensive: a run costs a segment for every block
+ * it covers, so addRange(MIN_VALUE, MAX_VALUE) with 4K blocks stores 2^20
+ * segments, 8MB, where an IntRanges needs two ints. This set suits many
+ * writers of scattered ids. StripedBenchmark measures the cost of wide
+ * runs, and snapshot() reuses its last merge while no stripe changes, so
+ * repeated reads of a quiet set do not pay it again.
+ *
+ * Single value operations are linearizable. Range updates and clear()
+ * are applied stripe by stripe. snapshot() returns a consistent copy of
+ * the whole set, and iteration runs over one. Readers never hold writers
+ * up: a write costs one CAS, plus a read of a counter that is zero unless
+ * a snapshot() is struggling to finish.
+ */
+public final class StripedIntRanges extends AbstractSet<Integer> {
+    private static final int DEFAULT_BLOCK_BITS = 12;
+    private static final int MAX_STRIPE_BITS = 16;
+
+    // optimistic double collects before snapshot() asks writers for help
+    private static final int SNAPSHOT_ATTEMPTS = 4;
+
+    private final Stripe[] stripes;
+    private final int blockBits;
+    private final int stripeMask;
+
+    // snapshot() calls currently asking writers for help
+    private final AtomicInteger scanners = new AtomicInteger();
+    // the last merged snapshot and the stripe tables it was made from
+    private volatile Cut lastCut;
+
+    /*
+     * A stripe's table and the number of values in it. Every write
+     * publishes a new Table with the next version, so two reads of a
+     * stripe that see the same version saw the same table throughout.
+     *
+     * A write made while a snapshot() is asking for help also carries a
+     * consistent copy of every stripe's table, taken after the write read
+     * the Table it replaces.
+     */
+    private static final class Table {
+        static final Table EMPTY = new Table(new int[0], 0, 0, null);
+
+        final int[] transitions;
+        final long cardinality;
+        final long version;
+        final int[][] cut;
+
+        Table(int[] transitions, long cardinality, long version, int[][] cut) {
+            this.transitions = transitions;
+            this.cardinality = cardinality;
+            this.version = version;
+            this.cut = cut;
+        }
+    }
+
+    private static final class Stripe extends AtomicReference<Table> {
+        Stripe() {
+            super(Table.EMPTY);
+        }
+    }
+
+    private static final class Cut {
+        final int[][] tables;
+        final IntRanges merged;
+
+        Cut(int[][] tables, IntRanges merged) {
+            this.tables = tables;
+            this.merged = merged;
+        }
+    }
+
+    public StripedIntRanges() {
+        this(defaultStripeBits(), DEFAULT_BLOCK_BITS);
+    }
+
+    public StripedIntRanges(int stripeBits, int blockBits) {
+        if (stripeBits < 0 || stripeBits > MAX_STRIPE_BITS)
+            throw new IllegalArgumentException("stripeBits=" + stripeBits);
+        if (blockBits < 0 || blockBits > 31 || stripeBits + blockBits > 32)
+            throw new IllegalArgumentException("blockBits=" + blockBits);
+
+        this.stripes = new Stripe[1 << stripeBits];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+        this.blockBits = blockBits;
+        this.stripeMask = stripes.length - 1;
+    }
+
+    // a few stripes per core keeps writers apart
+    private static int defaultStripeBits() {
+        final int wanted = 4 * Runtime.getRuntime().availableProcessors();
+        return Math.min(10, 32 - Integer.numberOfLeadingZeros(wanted - 1));
+    }
+
+    private Stripe stripeFor(int n) {
+        return stripes[(n >> blockBits) & stripeMask];
+    }
+
+    /*
+     * Replaces old with a new table by CAS. While a snapshot() is asking
+     * for help, first takes a consistent copy for it to borrow.
+     */
+    private boolean publish(Stripe stripe, Table old, int[] transitions, long cardinality) {
+        final int[][] cut = (scanners.get() != 0) ? scan(true) : null;
+        return stripe.compareAndSet(old, new Table(transitions, cardinality, old.version + 1, cut));
+    }
+
+    public boolean contains(int n) {
+        // inside a segment when an odd number of transitions are <= n
+        return (IntTransitions.firstGreaterThan(stripeFor(n).get().transitions, n) & 1) == 1;
+    }
+
+    public boolean add(int n) {
+        return splice(stripeFor(n), n, true);
+    }
+
+    public boolean remove(int n) {
+        return splice(stripeFor(n), n, false);
+    }
+
+    private boolean splice(Stripe stripe, int n, boolean on) {
+        while (true) {
+            final Table table = stripe.get();
+            final int[] newTransitions = IntTransitions.splice(table.transitions, n, n, on);
+
+            if (table.transitions == newTransitions) {
+                return false;
+            } else {
+                if (publish(stripe, table, newTransitions, table.cardinality + (on ? 1 : -1)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    public boolean addRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return update(fromInclusive, toExclusive - 1, IntTransitions.UNION);
+    }
+
+    public boolean removeRange(int fromInclusive, int toExclusive) {
+        checkRange(fromInclusive, toExclusive);
+        if (fromInclusive == toExclusive)
+            return false;
+        return update(fromInclusive, toExclusive - 1, IntTransitions.DIFFERENCE);
+    }
+
+    private static void checkRange(int fromInclusive, int toExclusive) {
+        if (fromInclusive > toExclusive)
+            throw new IllegalArgumentException("fromInclusive(" + fromInclusive + ") > toExclusive(" + toExclusive + ")");
+    }
+
+    // one merge per stripe the range touches
+    private boolean update(int first, int last, int op) {
+        boolean changed = false;
+        for (int i = 0; i < stripes.length; i++) {
+            final int[] other = stripeTable(i, first, last);
+            if (other.length > 0)
+                changed |= merge(stripes[i], other, op);
+        }
+        return changed;
+    }
+
+    private boolean merge(Stripe stripe, int[] other, int op) {
+        while (true) {
+            final Table table = stripe.get();
+            final int[] newTransitions = IntTransitions.merge(table.transitions, other, op);
+
+            if (table.transitions == newTransitions) {
+                return false;
+            } else {
+                if (publish(stripe, table, newTransitions, IntTransitions.cardinality(newTransitions)))
+                    return true;
+                // update failed, try again
+            }
+        }
+    }
+
+    /*
+     * Transition table for the part of [first, last] held by a stripe,
+     * which has a segment for every block of the range it holds. The
+     * range is half-open on the way in, so last is below MAX_VALUE and
+     * every segment has an end.
+     */
+    private int[] stripeTable(int stripe, int first, int last) {
+        if (stripes.length == 1)
+            return IntTransitions.splice(new int[0], first, last, true);
+
+        final long firstBlock = first >> blockBits;
+        final long lastBlock = last >> blockBits;
+        // first block at or after firstBlock dealt to this stripe
+        final long start = firstBlock + ((stripe - firstBlock) & stripeMask);
+        if (start > lastBlock)
+            return new int[0];
+
+        final int blocks = (int) ((lastBlock - start) / stripes.length + 1);
+        final int[] table = new int[2 * blocks];
+        int k = 0;
+        for (long block = start; block <= lastBlock; block += stripes.length) {
+            table[k++] = (int) Math.max(first, block << blockBits);
+            table[k++] = (int) Math.min(last + 1, (block + 1) << blockBits);
+        }
+        return table;
+    }
+
+    /*
+     * A consistent copy of the whole set.
+     *
+     * Collects every stripe's table until two passes in a row see the
+     * same versions, at which point they all held at once. Under steady
+     * writes that may not happen, so after a few attempts it asks the
+     * writers for help and finishes with scan(), which takes at most a
+     * pass per stripe more. Writers are never made to wait.
+     */
+    public IntRanges snapshot() {
+        return snapshot(SNAPSHOT_ATTEMPTS);
+    }
+
+    IntRanges snapshot(int attempts) {
+        int[][] tables = null;
+        Table[] seen = collect();
+        for (int attempt = 1; attempt < attempts; attempt++) {
+            final Table[] again = collect();
+            if (sameVersions(seen, again)) {
+                tables = tablesOf(again);
+                break;
+            }
+            seen = again;
+        }
+
+        if (tables == null) {
+            scanners.incrementAndGet();
+            try {
+                tables = scan(false);
+            } finally {
+                scanners.decrementAndGet();
+            }
+        }
+
+        final Cut cut = lastCut;
+        if (cut != null && sameTables(cut.tables, tables))
+            return cut.merged.clone();
+
+        final IntRanges merged = IntRanges.fromTransitions(IntTransitions.unionAll(tables));
+        lastCut = new Cut(tables, merged);
+        return merged.clone();
+    }
+
+    /*
+     * The snapshot of Afek et al., "Atomic Snapshots of Shared Memory".
+     * Collects until two passes agree, or until some stripe has been
+     * written twice since the scan began. The second of those writes read
+     * the table it replaced after the scan began, and so took its copy
+     * within the scan, and that copy can be returned. Every pass that
+     * disagrees finds a stripe written once more, so with n stripes this
+     * ends within n + 2 passes.
+     *
+     * A writer helping out gives up, returning null, once no snapshot()
+     * is waiting, as then nothing will borrow its copy.
+     */
+    private int[][] scan(boolean helping) {
+        final boolean[] moved = new boolean[stripes.length];
+        Table[] seen = collect();
+        while (true) {
+            if (helping && scanners.get() == 0)
+                return null;
+
+            final Table[] again = collect();
+            boolean same = true;
+            for (int i = 0; i < stripes.length; i++) {
+                if (seen[i].version != again[i].version) {
+                    // written twice, by a writer that saw us asking
+                    if (moved[i] && again[i].cut != null)
+                        return again[i].cut;
+                    moved[i] = true;
+                    same = false;
+                }
+            }
+            if (same)
+                return tablesOf(again);
+            seen = again;
+        }
+    }
+
+    private Table[] collect() {
+        final Table[] tables = new Table[stripes.length];
+        for (int i = 0; i < stripes.length; i++)
+            tables[i] = stripes[i].get();
+        return tables;
+    }
+
+    private static int[][] tablesOf(Table[] tables) {
+        final int[][] transitions = new int[tables.length][];
+        for (int i = 0; i < tables.length; i++)
+            transitions[i] = tables[i].transitions;
+        return transitions;
+    }
+
+    private static boolean sameVersions(Table[] a, Table[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].version != b[i].version)
+                return false;
+        }
+        return true;
+    }
+
+    // tables are never changed once published, so the same array means the same values
+    private static boolean sameTables(int[][] a, int[][] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (Stripe stripe: stripes)
+            cardinality += stripe.get().cardinality;
+        return cardinality;
+    }
+
+    // Set methods
+
+    public int size() {
+        return (int) Math.min(cardinality(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        for (Stripe stripe: stripes) {
+            if (stripe.get().transitions.length != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (Stripe stripe: stripes) {
+            while (true) {
+                final Table table = stripe.get();
+                if (table.transitions.length == 0 || publish(stripe, table, Table.EMPTY.transitions, 0))
+                    break;
+                // update failed, try again
+            }
+        }
+    }
+
+    public boolean contains(Object o) {
+        return contains((int)((Integer) o));
+    }
+
+    public boolean add(Integer o) {
+        return add((int) o);
+    }
+
+    public boolean remove(Object o) {
+        return remove((int)((Integer) o));
+    }
+
+    public Iterator<Integer> iterator() {
+        return intIterator();
+    }
+
+    public PrimitiveIterator.OfInt intIterator() {
+        return snapshot().intIterator();
+    }
+
+    public void forEachInt(IntConsumer action) {
+        snapshot().forEachInt(action);
+    }
+
+    public void forEachRange(IntBinaryConsumer action) {
+        snapshot().forEachRange(action);
+    }
+
+    public IntStream intStream() {
+        return snapshot().intStream();
+    }
+}
@@ -0,0 +1,86 @@
+package com.sunsetutopia.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/*
+ * Unsigned LEB128 varints: seven bits per byte, low bits first, with the
+ * top bit set on every byte but the last. Values are treated as unsigned,
+ * so any int takes one to five bytes and small ones take one.
+ */
+final class VarInts {
+    static final int MAX_BYTES = 5;
+
+    private VarInts() {
+    }
+
+    static int size(int value) {
+        // one byte per started group of seven significant bits
+        final int bits = 32 - Integer.numberOfLeadingZeros(value | 1);
+        return (bits + 6) / 7;
+    }
+
+    /*
+     * Writes value at buffer[position], returning the position after it.
+     */
+    static int put(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /*
+     * Reads the varint at buffer[position]. put() never pads, so it takes
+     * size() of the result in bytes.
+     */
+    static int get(byte[] buffer, int position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    static void write(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte(value | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int read(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_BYTES; shift += 7) {
+            final byte b = in.readByte();
+            // the fifth byte has room for the top four bits only
+            if (shift == 28 && (b & 0x70) != 0)
+                throw new StreamCorruptedException("varint overflows 32 bits");
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new StreamCorruptedException("varint longer than " + MAX_BYTES + " bytes");
+    }
+
+    /*
+     * Maps signed values to unsigned so small magnitudes of either sign
+     * stay short: 0, -1, 1, -2 ... become 0, 1, 2, 3 ...
+     */
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,89 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class CompressedIntRangesTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        CompressedIntRanges c = new CompressedIntRanges(r);
+        SetOracle.assertSameSet("r=" + r, r, c);
+        assertEquals("r=" + r, r.cardinality(), c.cardinality());
+        assertEquals("r=" + r, r.rangeCount(), c.rangeCount());
+        assertEquals("r=" + r + ", n=" + n, r.contains(n), c.contains(n));
+        assertEquals("r=" + r, r, c.toIntRanges());
+    }
+
+    @Test public void lookupsAtBlockEdges() {
+        // tables ending just before, on and just after each block boundary
+        for (int length = 1; length <= 3 * CompressedIntRanges.BLOCK + 1; length++) {
+            int[] transitions = new int[length];
+            for (int i = 0; i < length; i++)
+                transitions[i] = 10 * i + (i % 3);
+            IntRanges r = IntRanges.fromTransitions(transitions);
+            CompressedIntRanges c = new CompressedIntRanges(r);
+
+            assertArrayEquals("length=" + length, transitions, c.transitions());
+            for (int i = 0; i < length; i++) {
+                for (int n = transitions[i] - 1; n <= transitions[i] + 1; n++)
+                    assertEquals("length=" + length + ", n=" + n, r.contains(n), c.contains(n));
+            }
+            assertEquals("length=" + length, r.contains(Integer.MAX_VALUE), c.contains(Integer.MAX_VALUE));
+        }
+    }
+
+    @Test public void wideGapsEitherSideOfBlockEdges() {
+        // five byte gaps into the last transition of a block, and out of
+        // the first transition of the next
+        final int block = CompressedIntRanges.BLOCK;
+        int[] transitions = new int[2 * block + 1];
+        for (int i = 0; i < block - 1; i++)
+            transitions[i] = Integer.MIN_VALUE + i;
+        transitions[block - 1] = 0;
+        transitions[block] = 1;
+        transitions[block + 1] = Integer.MAX_VALUE - 2 * block;
+        for (int i = block + 2; i < transitions.length; i++)
+            transitions[i] = transitions[i - 1] + 1;
+
+        IntRanges r = IntRanges.fromTransitions(transitions);
+        CompressedIntRanges c = new CompressedIntRanges(r);
+        assertArrayEquals(transitions, c.transitions());
+        for (int t : transitions) {
+            assertEquals("t=" + t, r.contains(t), c.contains(t));
+            assertEquals("t=" + t, r.contains(t - 1), c.contains(t - 1));
+        }
+        assertEquals(r.cardinality(), c.cardinality());
+        assertEquals(r.toString(), c.toString());
+    }
+
+    @Test public void manyBlocks() {
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 10000; i++)
+            r.add(5 * i);
+        r.add(Integer.MIN_VALUE);
+        r.addRange(Integer.MAX_VALUE - 3, Integer.MAX_VALUE);
+        r.add(Integer.MAX_VALUE);
+
+        CompressedIntRanges c = new CompressedIntRanges(r);
+        for (int i = -10; i < 50010; i++)
+            assertEquals("i=" + i, r.contains(i), c.contains(i));
+        assertTrue(c.contains(Integer.MIN_VALUE));
+        assertFalse(c.contains(Integer.MIN_VALUE + 1));
+        assertTrue(c.contains(Integer.MAX_VALUE));
+        assertEquals(r, c.toIntRanges());
+
+        // single byte gaps plus the index
+        assertTrue("bytes=" + c.encodedBytes(), c.encodedBytes() < 4L * r.transitions().length / 3);
+    }
+}
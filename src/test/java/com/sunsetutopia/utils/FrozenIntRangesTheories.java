@@ -0,0 +1,74 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class FrozenIntRangesTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        FrozenIntRanges f = r.freeze();
+        SetOracle.assertSameSet("r=" + r, r, f);
+        assertEquals("r=" + r, r.cardinality(), f.cardinality());
+        assertEquals("r=" + r + ", n=" + n, r.contains(n), f.contains(n));
+    }
+
+    @Theory public void rankCountsSmallerValues(@ForAll IntRanges r, @ForAll int n) {
+        FrozenIntRanges f = r.freeze();
+        if (n != Integer.MAX_VALUE)
+            assertEquals("r=" + r + ", n=" + n, r.contains(n) ? 1 : 0, f.rank(n + 1) - f.rank(n));
+        assertEquals("r=" + r, 0, f.rank(Integer.MIN_VALUE));
+        assertEquals("r=" + r, r.cardinality() - (r.contains(Integer.MAX_VALUE) ? 1 : 0), f.rank(Integer.MAX_VALUE));
+    }
+
+    // values in r below n, counted without the sampled index
+    private static long rank(IntRanges r, int n) {
+        IntRanges below = r.clone();
+        below.removeRange(n, Integer.MAX_VALUE);
+        below.remove(Integer.MAX_VALUE);
+        return below.cardinality();
+    }
+
+    @Test public void lookupsAtSampleEdges() {
+        // tables ending just before, on and just after each sample, with
+        // and without an open-ended last segment
+        for (int length = 1; length <= 3 * FrozenIntRanges.SAMPLE + 1; length++) {
+            int[] transitions = new int[length];
+            for (int i = 0; i < length; i++)
+                transitions[i] = 7 * i - 100;
+            IntRanges r = IntRanges.fromTransitions(transitions);
+            FrozenIntRanges f = r.freeze();
+
+            for (int i = 0; i < length; i++) {
+                for (int n = transitions[i] - 1; n <= transitions[i] + 1; n++) {
+                    assertEquals("length=" + length + ", n=" + n, r.contains(n), f.contains(n));
+                    assertEquals("length=" + length + ", n=" + n, rank(r, n), f.rank(n));
+                }
+            }
+            assertEquals("length=" + length, rank(r, Integer.MAX_VALUE), f.rank(Integer.MAX_VALUE));
+            assertEquals("length=" + length, r.contains(Integer.MAX_VALUE), f.contains(Integer.MAX_VALUE));
+        }
+    }
+
+    @Test public void unaffectedByLaterChanges() {
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 10000; i += 2)
+            r.add(i);
+        FrozenIntRanges f = r.freeze();
+
+        r.addRange(0, 10000);
+        assertEquals(5000, f.cardinality());
+        assertFalse(f.contains(1));
+        assertTrue(f.contains(9998));
+        assertEquals(2500, f.rank(5000));
+    }
+}
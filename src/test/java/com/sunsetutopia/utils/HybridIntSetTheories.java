@@ -0,0 +1,164 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class HybridIntSetTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        HybridIntSet h = new HybridIntSet(r);
+        SetOracle.assertSameSet("r=" + r, r, h);
+        assertEquals("r=" + r, r.cardinality(), h.cardinality());
+
+        IntRanges expected = r.clone();
+        assertEquals("r=" + r + ", n=" + n, expected.add(n), h.add(n));
+        assertEquals("r=" + r + ", n=" + n, expected.remove(n ^ 1), h.remove(n ^ 1));
+        if (n < Integer.MAX_VALUE - 70000) {
+            assertEquals("r=" + r + ", n=" + n, expected.addRange(n, n + 70000), h.addRange(n, n + 70000));
+            assertEquals("r=" + r + ", n=" + n, expected.removeRange(n + 3, n + 5), h.removeRange(n + 3, n + 5));
+        }
+
+        assertEquals("r=" + r + ", n=" + n, expected.cardinality(), h.cardinality());
+        assertEquals("r=" + r + ", n=" + n, expected.rangeCount(), h.rangeCount());
+        assertEquals("r=" + r + ", n=" + n, expected.contains(n + 4), h.contains(n + 4));
+        SetOracle.assertSameSet("r=" + r + ", n=" + n, expected, h);
+    }
+
+    // forEachInt walks the containers directly rather than their runs
+    @Theory public void forEachMatchesIterator(@ForAll IntRanges r) {
+        HybridIntSet h = new HybridIntSet(r);
+        if (h.cardinality() > 100000)
+            return;
+
+        final List<Integer> visited = new ArrayList<Integer>();
+        h.forEachInt(visited::add);
+        final List<Integer> iterated = new ArrayList<Integer>();
+        for (int n : h)
+            iterated.add(n);
+        assertEquals("r=" + r, iterated, visited);
+    }
+
+    @Test public void arrayBecomesBitmapPastThreshold() {
+        HybridIntSet h = new HybridIntSet();
+        IntRanges expected = new IntRanges();
+        for (int i = 0; i < HybridIntSet.ARRAY_MAX; i++) {
+            h.add(2 * i);
+            expected.add(2 * i);
+        }
+        assertEquals("array", h.containerKind(0));
+        assertEquals(2 * HybridIntSet.ARRAY_MAX, h.containerBytes());
+
+        // one value more than an array holds
+        h.add(2 * HybridIntSet.ARRAY_MAX);
+        expected.add(2 * HybridIntSet.ARRAY_MAX);
+        assertEquals("bitmap", h.containerKind(0));
+        assertEquals(HybridIntSet.BITMAP_BYTES, h.containerBytes());
+        SetOracle.assertSameSet("bitmap", expected, h);
+
+        // and back at the threshold
+        h.remove(0);
+        expected.remove(0);
+        assertEquals("array", h.containerKind(0));
+        SetOracle.assertSameSet("array", expected, h);
+    }
+
+    @Test public void runBecomesBitmapWhenLarger() {
+        HybridIntSet h = new HybridIntSet();
+        IntRanges expected = new IntRanges();
+        h.addRange(0, 60000);
+        expected.addRange(0, 60000);
+        assertEquals("run", h.containerKind(0));
+
+        // each hole adds two transitions, 8 bytes, so with 1023 holes the
+        // run is as large as a bitmap, and one more outgrows it
+        for (int hole = 0; hole < 1023; hole++) {
+            h.remove(3 * hole + 1);
+            expected.remove(3 * hole + 1);
+        }
+        assertEquals("run", h.containerKind(0));
+        assertEquals(HybridIntSet.BITMAP_BYTES, h.containerBytes());
+
+        h.remove(3 * 1023 + 1);
+        expected.remove(3 * 1023 + 1);
+        assertEquals("bitmap", h.containerKind(0));
+        SetOracle.assertSameSet("bitmap", expected, h);
+
+        // filling the chunk by range makes it one run again
+        h.addRange(0, 65536);
+        expected.addRange(0, 65536);
+        assertEquals("run", h.containerKind(0));
+        assertEquals(8, h.containerBytes());
+        assertEquals(expected, h);
+    }
+
+    @Test public void runBecomesArrayWhenLarger() {
+        HybridIntSet h = new HybridIntSet();
+        h.addRange(0, 10);
+        assertEquals("run", h.containerKind(0));
+
+        // three segments of run tie with an array of 12 values
+        h.add(20);
+        h.add(30);
+        assertEquals("run", h.containerKind(0));
+        assertEquals(24, h.containerBytes());
+
+        h.add(40);
+        assertEquals("array", h.containerKind(0));
+        assertEquals(26, h.containerBytes());
+
+        IntRanges expected = new IntRanges();
+        expected.addRange(0, 10);
+        expected.add(20);
+        expected.add(30);
+        expected.add(40);
+        SetOracle.assertSameSet("array", expected, h);
+    }
+
+    @Test public void scatteredValuesStaySmall() {
+        HybridIntSet h = new HybridIntSet();
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 300000; i += 3) {
+            h.add(i);
+            r.add(i);
+        }
+
+        assertEquals(r, h.toIntRanges());
+        assertTrue(h.contains(299997));
+        assertFalse(h.contains(299998));
+        // bitmaps of 8KB per chunk, against 8 bytes a value for the table
+        assertTrue("bytes=" + h.containerBytes(), h.containerBytes() < 4L * r.transitions().length / 10);
+
+        for (int i = 0; i < 300000; i += 3)
+            assertTrue("i=" + i, h.remove(i));
+        assertTrue(h.isEmpty());
+        assertEquals(0, h.containerBytes());
+    }
+
+    @Test public void runsJoinAcrossChunks() {
+        HybridIntSet h = new HybridIntSet();
+        h.addRange(-100000, 100000);
+        h.addRange(Integer.MAX_VALUE - 70000, Integer.MAX_VALUE);
+        h.add(Integer.MAX_VALUE);
+
+        assertEquals(270001, h.cardinality());
+        assertEquals(2, h.rangeCount());
+        assertTrue(h.contains(Integer.MAX_VALUE));
+
+        h.removeRange(-10, 10);
+        assertEquals(3, h.rangeCount());
+        assertFalse(h.contains(0));
+    }
+}
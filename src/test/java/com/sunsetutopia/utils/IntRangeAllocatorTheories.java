@@ -0,0 +1,121 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class IntRangeAllocatorTheories {
+
+    @Theory public void allocatesLowestFreeId(@ForAll IntRanges r) {
+        IntRanges free = new IntRanges();
+        free.addRange(0, Integer.MAX_VALUE);
+        free.removeAll(r);
+
+        IntRangeAllocator allocator = new IntRangeAllocator(r.clone(), 0, Integer.MAX_VALUE, 1);
+        if (free.isEmpty()) {
+            try {
+                allocator.allocate();
+                fail("r=" + r);
+            } catch (NoSuchElementException e) {
+                // every id in use
+            }
+        } else {
+            int id = allocator.allocate();
+            assertEquals("r=" + r, free.first(), id);
+            assertTrue("r=" + r, allocator.isAllocated(id));
+            assertEquals("r=" + r, r.cardinality() + 1, allocator.allocatedCount());
+            assertTrue("r=" + r, allocator.free(id));
+            assertFalse("r=" + r, allocator.free(id));
+            assertEquals("r=" + r, r, allocator.allocated());
+        }
+    }
+
+    @Theory public void allocatesRangeInLowestGapLargeEnough(@ForAll IntRanges r) {
+        final int count = 3;
+        IntRanges free = new IntRanges();
+        free.addRange(0, Integer.MAX_VALUE);
+        free.removeAll(r);
+        final long[] expected = { -1 };
+        free.forEachRange((first, last) -> {
+            if (expected[0] < 0 && last - (long) first + 1 >= count)
+                expected[0] = first;
+        });
+
+        IntRangeAllocator allocator = new IntRangeAllocator(r.clone(), 0, Integer.MAX_VALUE, 1);
+        try {
+            int first = allocator.allocateRange(count);
+            assertEquals("r=" + r, expected[0], first);
+            assertEquals("r=" + r, r.cardinality() + count, allocator.allocatedCount());
+            assertTrue("r=" + r, allocator.freeRange(first, count));
+            assertEquals("r=" + r, r, allocator.allocated());
+        } catch (NoSuchElementException e) {
+            assertEquals("r=" + r, -1, expected[0]);
+        }
+    }
+
+    @Test public void freedIdsAreReused() {
+        IntRangeAllocator allocator = new IntRangeAllocator(10, 13);
+        assertEquals(10, allocator.allocate());
+        assertEquals(11, allocator.allocate());
+        assertEquals(12, allocator.allocate());
+        try {
+            allocator.allocate();
+            fail();
+        } catch (NoSuchElementException e) {
+            // pool exhausted
+        }
+
+        assertTrue(allocator.free(11));
+        assertEquals(11, allocator.allocate());
+    }
+
+    @Test public void threadsNeverShareAnId() throws Exception {
+        final IntRangeAllocator allocator = new IntRangeAllocator(new IntRanges(), 0, 1000000, 64);
+        final int threads = 4;
+        final int perThread = 50000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                int[] ids = new int[perThread];
+                for (int i = 0; i < perThread; i++)
+                    ids[i] = allocator.allocate();
+                allocator.release();
+                return ids;
+            }));
+        }
+
+        BitSet seen = new BitSet();
+        for (Future<int[]> result : results) {
+            for (int id : result.get()) {
+                assertFalse("id=" + id, seen.get(id));
+                seen.set(id);
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(threads * perThread, allocator.allocatedCount());
+        for (int id = seen.nextSetBit(0); id >= 0; id = seen.nextSetBit(id + 1))
+            assertTrue("id=" + id, allocator.free(id));
+        assertTrue(allocator.allocated().isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class IntRangeMapTheories {
+
+    @Theory public void keySetMatchesRanges(@ForAll IntRanges r, @ForAll int n) {
+        IntRangeMap<String> m = new IntRangeMap<String>();
+        r.forEachRange((first, last) -> {
+            if (last == Integer.MAX_VALUE)
+                m.putRange(first, last, "a");
+            else
+                m.putRange(first, last + 1, "a");
+        });
+        m.put(Integer.MAX_VALUE, "a");
+        r.add(Integer.MAX_VALUE);
+
+        assertEquals("r=" + r, r, m.keySet());
+        assertEquals("r=" + r, r.rangeCount(), m.rangeCount());
+        assertEquals("r=" + r + ", n=" + n, r.contains(n), m.containsKey(n));
+    }
+
+    @Theory public void putThenGet(@ForAll IntRanges r, @ForAll int n) {
+        IntRangeMap<String> m = new IntRangeMap<String>();
+        r.forEachRange((first, last) -> m.put(first, "first"));
+        m.put(n, "n");
+        assertEquals("r=" + r + ", n=" + n, "n", m.get(n));
+        assertTrue("r=" + r + ", n=" + n, m.remove(n));
+        assertNull("r=" + r + ", n=" + n, m.get(n));
+        assertEquals("r=" + r + ", n=" + n, m.keySet(), m.keysFor("first"));
+    }
+
+    @Test public void adjacentEqualValuesCoalesce() {
+        IntRangeMap<String> m = new IntRangeMap<String>();
+        m.putRange(0, 100, "a");
+        m.putRange(100, 200, "a");
+        assertEquals(1, m.rangeCount());
+        assertEquals("{[0-199]=a}", m.toString());
+
+        m.putRange(50, 150, "b");
+        assertEquals("{[0-49]=a,[50-149]=b,[150-199]=a}", m.toString());
+        assertFalse(m.putRange(60, 70, "b"));
+        assertEquals("b", m.get(149));
+        assertEquals("a", m.get(150));
+        assertNull(m.get(200));
+
+        m.putRange(50, 150, "a");
+        assertEquals("{[0-199]=a}", m.toString());
+        assertTrue(m.removeRange(0, 200));
+        assertTrue(m.isEmpty());
+    }
+
+    @Test public void shardLookup() {
+        IntRangeMap<Integer> shards = new IntRangeMap<Integer>();
+        for (int shard = 0; shard < 8; shard++)
+            shards.putRange(shard * 1000, (shard + 1) * 1000, shard);
+        shards.putRange(2500, 2600, 7);
+
+        assertEquals(Integer.valueOf(0), shards.get(0));
+        assertEquals(Integer.valueOf(7), shards.get(2550));
+        assertEquals(Integer.valueOf(2), shards.get(2600));
+        assertNull(shards.get(8000));
+        assertEquals(1100, shards.keysFor(7).cardinality());
+    }
+}
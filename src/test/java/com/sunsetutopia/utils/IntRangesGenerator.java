@@ -15,10 +15,12 @@ public class IntRangesGenerator extends Generator<IntRanges> {
 
     @Override
     public IntRanges generate(SourceOfRandomness random, GenerationStatus status) {
-        IntRanges r = new IntRanges();
+        IntRanges.Builder b = new IntRanges.Builder();
 
         for (int i = 0; i < status.size(); ++i)
-            r.add(intGen.generate(random, status));
+            b.add(intGen.generate(random, status));
+
+        IntRanges r = b.build();
 
         assert(r.size() == status.size());
 
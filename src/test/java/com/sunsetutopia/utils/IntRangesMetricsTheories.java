@@ -0,0 +1,174 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+/*
+ * Needs a JVM started with -Dcom.sunsetutopia.utils.IntRanges.metrics=true,
+ * so the pom runs it alone in its own forked surefire execution.
+ */
+@RunWith(Theories.class)
+public class IntRangesMetricsTheories {
+
+    private static IntRangesCounters install() {
+        assertTrue("metrics switched off", IntRanges.metricsEnabled());
+        IntRangesCounters counters = new IntRangesCounters();
+        IntRanges.setMetrics(counters);
+        return counters;
+    }
+
+    private static long total(long[] histogram) {
+        long total = 0;
+        for (long n : histogram)
+            total += n;
+        return total;
+    }
+
+    @Test public void eachChangeReportedOnce() {
+        IntRanges r = new IntRanges();
+        IntRangesCounters counters = install();
+
+        r.add(1);
+        r.add(1);
+        r.addRange(5, 10);
+        r.remove(1);
+        r.remove(1);
+        assertEquals(3, counters.updates());
+        // {1,2}, {1,2,5,10}, {5,10}
+        assertEquals(4 * (2 + 4 + 2), counters.copiedBytes());
+
+        r.clear();
+        r.clear();
+        assertEquals(4, counters.updates());
+        assertEquals(4 * (2 + 4 + 2), counters.copiedBytes());
+        assertEquals(1, counters.segmentHistogram()[0]);
+        assertEquals(0, counters.casFailures());
+    }
+
+    @Test public void lostCasReported() {
+        IntRanges r = new IntRanges();
+        IntRangesCounters counters = install();
+
+        IntRanges.Snapshot stale = r.snapshot();
+        r.add(1);
+        assertFalse(r.updateTransitions(stale, new int[] {5, 6, 8, 9}, 2));
+        assertEquals(1, counters.casFailures());
+        assertEquals(4 * 4, counters.wastedBytes());
+        assertEquals(1, counters.updates());
+    }
+
+    @Theory public void containsReportsTransitionsRead(@ForAll IntRanges r, @ForAll int n) {
+        int[] transitions = r.transitions();
+        if (transitions.length > IntTransitions.LINEAR_SEARCH_LIMIT)
+            return;
+        IntRangesCounters counters = install();
+
+        // the scan reads every transition <= n, then the one that stops it
+        int read = 0;
+        for (int t : transitions) {
+            if (t <= n)
+                read++;
+        }
+        if (read < transitions.length)
+            read++;
+        if (n == Integer.MAX_VALUE)
+            read = 0;
+
+        r.contains(n);
+        long[] searches = counters.searchLengthHistogram();
+        assertEquals("r=" + r, 1, total(searches));
+        assertEquals("r=" + r, 1, searches[IntRangesCounters.bucket(read)]);
+    }
+
+    @Test public void largeTablesReportBinarySearchSteps() {
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 500; i++)
+            r.add(2 * i);
+        IntRangesCounters counters = install();
+
+        // 1000 transitions halve down to one in 10 reads, then one more
+        r.contains(0);
+        r.contains(999);
+        assertEquals(2, counters.searchLengthHistogram()[IntRangesCounters.bucket(11)]);
+    }
+
+    @Test public void batchQueriesReportEachGallop() {
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 4; i++)
+            r.addRange(20 * i, 20 * i + 10);
+        IntRangesCounters counters = install();
+
+        // strides read 0, 10 and 30 then stop at 70, and [40, 60, 70) takes 3
+        r.containsEach(new int[] {35}, new boolean[1]);
+        long[] searches = counters.searchLengthHistogram();
+        assertEquals(1, total(searches));
+        assertEquals(1, searches[IntRangesCounters.bucket(7)]);
+    }
+
+    @Test public void everySearchingLookupReports() {
+        IntRanges r = new IntRanges();
+        r.addRange(0, 10);
+        r.addRange(20, 30);
+        IntRangesCounters counters = install();
+
+        r.rank(5);
+        r.ceiling(12);
+        r.floor(12);
+        r.higher(12);
+        r.lower(12);
+        assertEquals(5, total(counters.searchLengthHistogram()));
+
+        r.containsAll(new int[] {25, 5, 15});
+        assertEquals(8, total(counters.searchLengthHistogram()));
+
+        IntRanges.SubSet s = r.subSet(5, 25);
+        s.contains(7);
+        s.cardinality();
+        s.first();
+        s.last();
+        assertEquals(13, total(counters.searchLengthHistogram()));
+
+        // walks the table without searching it
+        r.select(3);
+        r.forEachInt(n -> { });
+        assertEquals(13, total(counters.searchLengthHistogram()));
+    }
+
+    @Test public void racingWritersAccountForEveryAttempt() throws InterruptedException {
+        final IntRanges r = new IntRanges();
+        final IntRangesCounters counters = install();
+        final AtomicLong changed = new AtomicLong();
+
+        final Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int offset = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    if (r.add(4 * i + offset))
+                        changed.incrementAndGet();
+                    if ((i & 3) == 0 && r.remove(4 * (i / 2) + offset))
+                        changed.incrementAndGet();
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers)
+            writer.join();
+
+        assertEquals(changed.get(), counters.updates());
+        assertEquals(counters.updates(), total(counters.segmentHistogram()));
+        // every lost race threw away a table, none of them empty
+        assertEquals(counters.toString(), counters.casFailures() == 0, counters.wastedBytes() == 0);
+    }
+}
@@ -0,0 +1,162 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+/*
+ * Checks LongRanges against IntRanges over the int range. The two are
+ * kept in step by hand, so this catches the table algorithms disagreeing,
+ * but not a change made to one class and never ported to the other.
+ */
+@RunWith(Theories.class)
+public class LongRangesTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll IntRanges other, @ForAll int n) {
+        LongRanges l = new LongRanges(r);
+        assertEquals("r=" + r, r.toString(), l.toString());
+        assertEquals("r=" + r, r.cardinality(), l.cardinality());
+
+        IntRanges expected = r.clone();
+        assertEquals("r=" + r + ", n=" + n, expected.add(n), l.add(n));
+        assertEquals("r=" + r + ", n=" + n, expected.remove(n ^ 1), l.remove(n ^ 1));
+        if (n < Integer.MAX_VALUE - 1000)
+            assertEquals("r=" + r + ", n=" + n, expected.addRange(n, n + 1000), l.addRange(n, n + 1000));
+        assertEquals("r=" + r + ", n=" + n, expected.toString(), l.toString());
+
+        LongRanges o = new LongRanges(other);
+        assertEquals("other=" + other, expected.containsAll(other), l.containsAll(o));
+        assertEquals("other=" + other, expected.retainAll(other), l.retainAll(o));
+        assertEquals("other=" + other, expected.toString(), l.toString());
+        assertEquals("other=" + other, expected.addAll(other), l.addAll(o));
+        assertEquals("other=" + other, expected.toString(), l.toString());
+        assertEquals("other=" + other, expected.removeAll(other), l.removeAll(o));
+        assertEquals("other=" + other, new LongRanges(expected), l);
+    }
+
+    @Theory public void cardinalityTracksUpdates(@ForAll IntRanges r, @ForAll int n) {
+        LongRanges l = new LongRanges(r);
+        IntRanges expected = r.clone();
+        for (int i = 0; i < 8; i++) {
+            final int m = n + i * (i - 3);
+            if ((i & 1) == 0) {
+                expected.add(m);
+                l.add(m);
+            } else {
+                expected.remove(m);
+                l.remove(m);
+            }
+            assertEquals("r=" + r + ", n=" + n + ", i=" + i, expected.cardinality(), l.cardinality());
+            assertEquals("r=" + r + ", n=" + n + ", i=" + i, LongTransitions.cardinality(l.transitions()), l.cardinality());
+        }
+    }
+
+    @Test public void saturatedCardinalityRecountedOnRemove() {
+        LongRanges l = new LongRanges();
+        l.addRange(0, Long.MAX_VALUE);
+        l.add(Long.MAX_VALUE);
+        // 2^63 values, one more than a long holds
+        assertEquals(Long.MAX_VALUE, l.cardinality());
+
+        l.remove(0L);
+        assertEquals(Long.MAX_VALUE, l.cardinality());
+        l.remove(1L);
+        assertEquals(Long.MAX_VALUE - 1, l.cardinality());
+        l.add(1L);
+        assertEquals(Long.MAX_VALUE, l.cardinality());
+    }
+
+    @Theory public void spliteratorSplitsMatchIteration(@ForAll IntRanges r) {
+        LongRanges l = new LongRanges(r);
+        List<Long> expected = new ArrayList<Long>();
+        l.forEachLong(expected::add);
+
+        List<Long> actual = new ArrayList<Long>();
+        splitAndWalk("r=" + r, l.spliterator(), 6, actual);
+        assertEquals("r=" + r, expected, actual);
+    }
+
+    // splits depth times, walking each prefix before the rest
+    private static void splitAndWalk(String message, Spliterator.OfLong s, int depth, List<Long> out) {
+        final long size = s.estimateSize();
+        final Spliterator.OfLong prefix = (depth > 0) ? s.trySplit() : null;
+        if (prefix == null) {
+            final int before = out.size();
+            if ((depth & 1) == 0) {
+                s.forEachRemaining((long n) -> out.add(n));
+            } else {
+                while (s.tryAdvance((long n) -> out.add(n)))
+                    ;
+            }
+            assertEquals(message, size, out.size() - before);
+        } else {
+            assertEquals(message, size, prefix.estimateSize() + s.estimateSize());
+            splitAndWalk(message, prefix, depth - 1, out);
+            splitAndWalk(message, s, depth - 1, out);
+        }
+    }
+
+    @Test public void fullRangeSplitsUntilSized() {
+        LongRanges l = new LongRanges();
+        l.addRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        l.add(Long.MAX_VALUE);
+
+        Spliterator.OfLong right = l.spliterator();
+        assertFalse(right.hasCharacteristics(Spliterator.SIZED));
+
+        // 2^63 values each side, still too many to count
+        Spliterator.OfLong left = right.trySplit();
+        assertFalse(left.hasCharacteristics(Spliterator.SIZED));
+        assertFalse(right.hasCharacteristics(Spliterator.SIZED));
+
+        Spliterator.OfLong leftQuarter = left.trySplit();
+        assertTrue(leftQuarter.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(1L << 62, leftQuarter.estimateSize());
+        assertEquals(1L << 62, left.estimateSize());
+
+        final long[] first = new long[1];
+        assertTrue(leftQuarter.tryAdvance((long n) -> first[0] = n));
+        assertEquals(Long.MIN_VALUE, first[0]);
+        assertEquals((1L << 62) - 1, leftQuarter.estimateSize());
+        assertTrue(right.tryAdvance((long n) -> first[0] = n));
+        assertEquals(0L, first[0]);
+    }
+
+    @Test public void beyondIntRange() {
+        LongRanges l = new LongRanges();
+        long base = 1L << 40;
+        l.addRange(base, base + 1000);
+        l.add(Long.MIN_VALUE);
+
+        assertEquals(1001, l.cardinality());
+        assertTrue(l.contains(base + 999));
+        assertFalse(l.contains(base + 1000));
+        assertTrue(l.contains(Long.MIN_VALUE));
+        assertEquals(2, l.rangeCount());
+    }
+
+    @Test public void fullRangeCardinality() {
+        LongRanges l = new LongRanges();
+        l.addRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        l.add(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, l.cardinality());
+        assertEquals(BigInteger.ONE.shiftLeft(64), l.exactCardinality());
+        assertTrue(l.remove(0L));
+        assertFalse(l.contains(0L));
+        assertEquals(2, l.rangeCount());
+    }
+}
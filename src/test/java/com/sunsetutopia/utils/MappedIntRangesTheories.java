@@ -0,0 +1,138 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class MappedIntRangesTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        MappedIntRanges m = IntRangesFile.wrap(IntRangesFile.toDirectBuffer(r));
+        SetOracle.assertSameSet("r=" + r, r, m);
+        assertEquals("r=" + r, r.cardinality(), m.cardinality());
+        assertEquals("r=" + r, r.rangeCount(), m.rangeCount());
+        assertEquals("r=" + r + ", n=" + n, r.contains(n), m.contains(n));
+        assertEquals("r=" + r, r, m.toIntRanges());
+    }
+
+    @Theory public void everyTruncationRejected(@ForAll IntRanges r) throws IOException {
+        Path path = Files.createTempFile("ranges", ".irng");
+        try {
+            IntRangesFile.write(r, path);
+            byte[] bytes = Files.readAllBytes(path);
+            for (int length = 0; length < bytes.length; length++) {
+                Files.write(path, Arrays.copyOf(bytes, length));
+                try {
+                    IntRangesFile.map(path);
+                    fail("r=" + r + ", length=" + length);
+                } catch (IllegalArgumentException e) {
+                    // too short for the header, or for the count it holds
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Theory public void everyBitFlipRejected(@ForAll IntRanges r) {
+        ByteBuffer good = IntRangesFile.toDirectBuffer(r);
+        for (int i = 0; i < good.limit(); i++) {
+            for (int bit = 0; bit < 8; bit++) {
+                ByteBuffer bad = ByteBuffer.allocate(good.limit());
+                bad.put(good.duplicate()).flip();
+                bad.put(i, (byte) (bad.get(i) ^ (1 << bit)));
+                try {
+                    IntRangesFile.wrap(bad);
+                    fail("r=" + r + ", byte=" + i + ", bit=" + bit);
+                } catch (IllegalArgumentException e) {
+                    // header checks or the CRC
+                }
+            }
+        }
+    }
+
+    @Theory public void roundTripsThroughFile(@ForAll IntRanges r) throws IOException {
+        Path path = Files.createTempFile("ranges", ".irng");
+        try {
+            IntRangesFile.write(r, path);
+            assertEquals("r=" + r, IntRangesFile.encodedSize(r), Files.size(path));
+            assertEquals("r=" + r, r, IntRangesFile.map(path).toIntRanges());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test public void largeTableSpansWriteChunks() throws IOException {
+        IntRanges r = new IntRanges();
+        for (int i = 0; i < 100000; i++)
+            r.add(3 * i);
+        r.addRange(Integer.MAX_VALUE - 5, Integer.MAX_VALUE);
+        r.add(Integer.MAX_VALUE);
+
+        Path path = Files.createTempFile("ranges", ".irng");
+        try {
+            IntRangesFile.write(r, path);
+            MappedIntRanges m = IntRangesFile.map(path);
+            assertEquals(100006, m.cardinality());
+            assertTrue(m.contains(299997));
+            assertFalse(m.contains(299998));
+            assertTrue(m.contains(Integer.MAX_VALUE));
+            assertEquals(r, m.toIntRanges());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test public void checksumMismatchReported() {
+        IntRanges r = new IntRanges();
+        r.addRange(10, 20);
+        ByteBuffer buffer = IntRangesFile.toDirectBuffer(r);
+        buffer.put(IntRangesFile.HEADER_BYTES, (byte) 11);
+        try {
+            IntRangesFile.wrap(buffer);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("checksum mismatch", e.getMessage());
+        }
+    }
+
+    @Test public void unsortedTableRejectedDespiteChecksum() {
+        ByteBuffer buffer = ByteBuffer.allocate(IntRangesFile.HEADER_BYTES + 8 + IntRangesFile.CHECKSUM_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(IntRangesFile.MAGIC).putShort((short) IntRangesFile.VERSION).putShort((short) 0).putInt(2);
+        buffer.putInt(20).putInt(10);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue()).flip();
+        try {
+            IntRangesFile.wrap(buffer);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("transitions not increasing at 1", e.getMessage());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() {
+        MappedIntRanges m = IntRangesFile.wrap(IntRangesFile.toDirectBuffer(new IntRanges()));
+        m.add(1);
+    }
+}
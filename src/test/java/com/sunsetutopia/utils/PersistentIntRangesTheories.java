@@ -0,0 +1,139 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class PersistentIntRangesTheories {
+
+    @Theory public void matchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        PersistentIntRanges p = new PersistentIntRanges(r);
+        SetOracle.assertSameSet("r=" + r, r, p);
+
+        IntRanges expected = r.clone();
+        assertEquals("r=" + r + ", n=" + n, expected.add(n), p.add(n));
+        assertEquals("r=" + r + ", n=" + n, expected.remove(n ^ 1), p.remove(n ^ 1));
+        assertEquals("r=" + r + ", n=" + n, expected.add(n + 1), p.add(n + 1));
+        assertEquals("r=" + r + ", n=" + n, expected.cardinality(), p.cardinality());
+        SetOracle.assertSameSet("r=" + r + ", n=" + n, expected, p);
+    }
+
+    @Test public void leafSplitsAndJoinsAtCapacity() {
+        PersistentIntRanges p = new PersistentIntRanges();
+        IntRanges expected = new IntRanges();
+
+        // 32 single values are 64 keys, a full leaf
+        for (int i = 0; i < 32; i++) {
+            p.add(3 * i);
+            expected.add(3 * i);
+        }
+        assertEquals(0, p.height());
+
+        // two more keys split it
+        p.add(96);
+        expected.add(96);
+        assertEquals(1, p.height());
+        SetOracle.assertSameSet("split", expected, p);
+
+        // removing them again, leaves underflow and join until the root
+        // is a single leaf once more
+        p.remove(96);
+        expected.remove(96);
+        for (int i = 0; i < 32; i++) {
+            assertTrue("i=" + i, p.remove(3 * i));
+            expected.remove(3 * i);
+            SetOracle.assertSameSet("i=" + i, expected, p);
+        }
+        assertEquals(0, p.height());
+        assertTrue(p.isEmpty());
+    }
+
+    @Test public void togglesAtNodeBoundaries() {
+        IntRanges source = new IntRanges();
+        for (int i = 0; i < 20000; i++)
+            source.add(2 * i);
+        PersistentIntRanges p = new PersistentIntRanges(source);
+        IntRanges expected = source.clone();
+        assertTrue("height=" + p.height(), p.height() >= 2);
+
+        // every leaf boundary in turn: the first key of each node is the
+        // smallest key routed to it, so joining values there moves a min
+        int[] keys = p.transitions();
+        for (int i = 0; i < keys.length; i += 48) {
+            int n = keys[i] - 1;
+            assertEquals("n=" + n, expected.add(n), p.add(n));
+        }
+        assertEquals(expected.toString(), p.toString());
+
+        // drain from both ends so leaves underflow and borrow from either side
+        for (int i = 0; i < 20000; i += 2) {
+            assertEquals("i=" + i, expected.remove(2 * i), p.remove(2 * i));
+            assertEquals("i=" + i, expected.remove(2 * (19999 - i)), p.remove(2 * (19999 - i)));
+            if (i % 1000 == 0)
+                assertEquals("i=" + i, expected.toString(), p.toString());
+        }
+        SetOracle.assertSameSet("drained", expected, p);
+    }
+
+    @Test public void randomWalkMatchesIntRanges() {
+        Random random = new Random(12);
+        PersistentIntRanges p = new PersistentIntRanges();
+        IntRanges expected = new IntRanges();
+
+        for (int step = 0; step < 200000; step++) {
+            int n = random.nextInt(20000);
+            if (random.nextBoolean())
+                assertEquals("step=" + step, expected.add(n), p.add(n));
+            else
+                assertEquals("step=" + step, expected.remove(n), p.remove(n));
+            if (step % 5000 == 0)
+                assertEquals("step=" + step, expected.toString(), p.toString());
+        }
+        SetOracle.assertSameSet("end", expected, p);
+    }
+
+    @Test public void manySegmentsAddRemove() {
+        PersistentIntRanges p = new PersistentIntRanges();
+
+        // enough segments for a tree several levels deep
+        for (int i = 0; i < 100000; i += 2)
+            assertTrue("i=" + i, p.add(i));
+        assertEquals(50000, p.size());
+        assertTrue(p.contains(99998));
+        assertFalse(p.contains(99999));
+
+        PersistentIntRanges before = p.clone();
+        for (int i = 1; i < 100000; i += 2)
+            assertTrue("i=" + i, p.add(i));
+        assertEquals(100000, p.size());
+        assertEquals(1, p.toIntRanges().rangeCount());
+        assertEquals(50000, before.size());
+
+        for (int i = 0; i < 100000; i++)
+            assertTrue("i=" + i, p.remove(i));
+        assertTrue(p.isEmpty());
+    }
+
+    @Test public void openEnded() {
+        PersistentIntRanges p = new PersistentIntRanges();
+        p.add(Integer.MAX_VALUE);
+        p.add(Integer.MAX_VALUE - 1);
+        assertEquals(2, p.cardinality());
+        assertTrue(p.contains(Integer.MAX_VALUE));
+
+        p.remove(Integer.MAX_VALUE);
+        assertEquals(1, p.cardinality());
+        assertFalse(p.contains(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,44 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * The checks every range-backed set shares, against an IntRanges holding
+ * the same values. Each type's own theories cover what it can get wrong
+ * on top of these.
+ */
+final class SetOracle {
+    // sets up to this size are also compared value by value
+    private static final long SMALL = 10000;
+
+    private SetOracle() {
+    }
+
+    static void assertSameSet(String message, IntRanges expected, Set<Integer> actual) {
+        assertTrue(message, actual.equals(expected));
+        assertTrue(message, expected.equals(actual));
+        assertEquals(message, expected.size(), actual.size());
+        assertEquals(message, expected.toString(), actual.toString());
+
+        if (expected.cardinality() <= SMALL) {
+            // equality with a plain Set, both ways, and matching hashes
+            final Set<Integer> plain = new HashSet<Integer>(expected);
+            assertTrue(message, actual.equals(plain));
+            assertTrue(message, plain.equals(actual));
+            assertEquals(message, plain.hashCode(), actual.hashCode());
+
+            final List<Integer> iterated = new ArrayList<Integer>();
+            for (int n : actual)
+                iterated.add(n);
+            final List<Integer> ordered = new ArrayList<Integer>();
+            expected.forEachInt(ordered::add);
+            assertEquals(message, ordered, iterated);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.sunsetutopia.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.junit.contrib.theories.Theories;
+import org.junit.contrib.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.pholser.junit.quickcheck.ForAll;
+
+
+@RunWith(Theories.class)
+public class StripedIntRangesTheories {
+
+    @Theory public void snapshotMatchesIntRanges(@ForAll IntRanges r, @ForAll int n) {
+        StripedIntRanges s = new StripedIntRanges(3, 4);
+        r.forEachInt(s::add);
+        assertEquals("r=" + r, r, s.snapshot());
+
+        IntRanges expected = r.clone();
+        if (n <= Integer.MAX_VALUE - 1000) {
+            expected.addRange(n, n + 1000);
+            s.addRange(n, n + 1000);
+        }
+        expected.remove(n + 10);
+        s.remove(n + 10);
+
+        assertEquals("r=" + r + ", n=" + n, expected, s.snapshot());
+        assertEquals("r=" + r + ", n=" + n, expected.cardinality(), s.cardinality());
+        assertEquals("r=" + r + ", n=" + n, expected.contains(n + 10), s.contains(n + 10));
+    }
+
+    @Test public void rangesSpanStripes() {
+        StripedIntRanges s = new StripedIntRanges(2, 4);
+        assertTrue(s.addRange(-100, 100));
+        assertFalse(s.addRange(-50, 50));
+        assertEquals(200, s.size());
+        assertEquals(1, s.snapshot().rangeCount());
+
+        assertTrue(s.removeRange(-10, 10));
+        assertEquals(180, s.size());
+        assertFalse(s.contains(0));
+        assertTrue(s.contains(10));
+        assertEquals(2, s.snapshot().rangeCount());
+    }
+
+    @Test public void rangeToMaxValue() {
+        StripedIntRanges s = new StripedIntRanges(4, 20);
+        s.addRange(Integer.MAX_VALUE - (1 << 22), Integer.MAX_VALUE);
+        s.add(Integer.MAX_VALUE);
+
+        IntRanges expected = new IntRanges();
+        expected.addRange(Integer.MAX_VALUE - (1 << 22), Integer.MAX_VALUE);
+        expected.add(Integer.MAX_VALUE);
+        assertEquals(expected, s.snapshot());
+    }
+
+    @Test public void concurrentWritersAllLand() throws InterruptedException {
+        final StripedIntRanges s = new StripedIntRanges();
+        final int writers = 8;
+        final int perWriter = 10000;
+
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int offset = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perWriter; j++)
+                    s.add(j * writers + offset);
+            });
+            threads[i].start();
+        }
+        for (Thread t: threads)
+            t.join();
+
+        assertEquals(writers * perWriter, s.size());
+        assertEquals(1, s.snapshot().rangeCount());
+    }
+
+    @Test(timeout = 60000) public void snapshotsFinishUnderSteadyWrites() throws InterruptedException {
+        snapshotsStayConsistent(4);
+    }
+
+    // a single collect always falls through to the scan writers help with
+    @Test(timeout = 60000) public void helpedSnapshotsStayConsistent() throws InterruptedException {
+        snapshotsStayConsistent(1);
+    }
+
+    private static void snapshotsStayConsistent(int attempts) throws InterruptedException {
+        final StripedIntRanges s = new StripedIntRanges(3, 4);
+        s.addRange(-1000, 0);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final int writers = 4;
+
+        // each writer adds a then b, and removes b then a, with a and b in
+        // different stripes, so a consistent copy never holds b without a
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int a = 1000 + i;
+            final int b = a + 16;
+            threads[i] = new Thread(() -> {
+                while (!stop.get()) {
+                    s.add(a);
+                    s.add(b);
+                    s.remove(b);
+                    s.remove(a);
+                }
+            });
+            threads[i].start();
+        }
+
+        try {
+            for (int round = 0; round < 2000; round++) {
+                IntRanges copy = s.snapshot(attempts);
+                for (int i = 0; i < writers; i++)
+                    assertTrue("copy=" + copy, !copy.contains(1016 + i) || copy.contains(1000 + i));
+                assertTrue("copy=" + copy, copy.size() >= 1000 && copy.size() <= 1000 + 2 * writers);
+
+                final long[] count = { 0 };
+                s.forEachInt(n -> count[0]++);
+                assertTrue("count=" + count[0], count[0] >= 1000 && count[0] <= 1000 + 2 * writers);
+            }
+        } finally {
+            stop.set(true);
+            for (Thread t: threads)
+                t.join();
+        }
+        assertEquals(1000, s.size());
+    }
+
+    @Test public void quietSnapshotsAreIndependentCopies() {
+        StripedIntRanges s = new StripedIntRanges(2, 4);
+        s.addRange(0, 100);
+        IntRanges first = s.snapshot();
+        first.add(500);
+
+        IntRanges second = s.snapshot();
+        assertFalse(second.contains(500));
+        assertEquals(100, second.cardinality());
+    }
+}